@@ -0,0 +1,77 @@
+package org.example;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+One of the bundled datasets at one cell size, with its spatial index built and the initial grid computed.
+The datasets are looked up in the directory of the system property geoaut.data (the repository root by default).
+dataKir is left out of the defaults: it has no buildings.shp, so its trials would fail in setUp.
+Once the file is added it can be run with -p dataset=dataKir.
+*/
+@State(Scope.Benchmark)
+public class DatasetState {
+    static final int SAMPLE = 1024; // centroids per query benchmark invocation
+
+    @Param({"data", "dataKCH"})
+    public String dataset;
+    @Param({"40", "80", "160"})
+    public double cellSize;
+    @Param({"HILBERT", "STR_TREE"})
+    public STRTree.IndexEngine indexEngine;
+
+    Simulation simulation;
+    CellGrid grid;
+    Point[] sample;
+    Point[] run; // SAMPLE consecutive centroids from the middle of the grid, in the order of initColumn
+    ForkJoinPool pool;
+    private long[] initialUrban;
+    private int[] initialNewUrbanAt;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Simulation.setCellSize(cellSize);
+        Simulation.setIndexEngine(indexEngine);
+        Simulation.setSeed(1L);
+        Simulation.setCacheDirectory(null);
+        pool = new ForkJoinPool(Simulation.getParallelism());
+        simulation = new Simulation(new File(System.getProperty("geoaut.data", ".."), dataset).getAbsolutePath());
+        grid = simulation.getInitialCells();
+        initialUrban = grid.urban.clone();
+        initialNewUrbanAt = grid.newUrbanAt.clone();
+        //one iteration fills the development probabilities the segmentation works on
+        simulation.doIteration(grid);
+        reset();
+
+        GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory();
+        sample = new Point[SAMPLE];
+        for (int k = 0; k < SAMPLE; k++) {
+            int index = (int) ((long) k * grid.getSize() / SAMPLE);
+            sample[k] = geometryFactory.createPoint(new Coordinate(grid.getCentroidX(grid.column(index)),
+                    grid.getCentroidY(grid.row(index))));
+        }
+        run = new Point[SAMPLE];
+        for (int k = 0; k < SAMPLE; k++) {
+            int index = (grid.getSize() / 2 + k) % grid.getSize();
+            run[k] = geometryFactory.createPoint(new Coordinate(grid.getCentroidX(grid.column(index)),
+                    grid.getCentroidY(grid.row(index))));
+        }
+    }
+
+    // Back to the urban state of the initial grid
+    void reset() {
+        System.arraycopy(initialUrban, 0, grid.urban, 0, initialUrban.length);
+        System.arraycopy(initialNewUrbanAt, 0, grid.newUrbanAt, 0, initialNewUrbanAt.length);
+    }
+}
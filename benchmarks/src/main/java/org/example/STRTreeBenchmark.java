@@ -0,0 +1,94 @@
+package org.example;
+
+import org.locationtech.jts.geom.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Queries are timed per centroid, over a fixed sample of the grid's centroids
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class STRTreeBenchmark {
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public STRTree construction(DatasetState state) {
+        return new STRTree(state.simulation.getShapefilesFeatureCollections(), Simulation.getMinSpeedForExpressway(),
+                Simulation.getDefaultRiverWidth(), Simulation.getFactor(), Simulation.getDistanceEngine(),
+                Simulation.getIndexEngine(), state.pool);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DatasetState.SAMPLE)
+    public void nearestDistances(DatasetState state, Blackhole blackhole) {
+        for (Point point : state.sample) {
+            for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+                blackhole.consume(state.simulation.strTree.getNearestDistance(point, layer));
+            }
+        }
+    }
+
+    // Neighbouring centroids, one query per layer each, compare with nearestDistancesSweep
+    @Benchmark
+    @OperationsPerInvocation(DatasetState.SAMPLE)
+    public void nearestDistancesRun(DatasetState state, Blackhole blackhole) {
+        for (Point point : state.run) {
+            for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+                blackhole.consume(state.simulation.strTree.getNearestDistance(point, layer));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DatasetState.SAMPLE)
+    public void nearestDistancesSweep(DatasetState state, Blackhole blackhole) {
+        NearestSweep sweep = new NearestSweep(state.simulation.strTree);
+        double[] distances = new double[CellGrid.PARAMETERS];
+        for (Point point : state.run) {
+            sweep.nearestDistances(point, distances);
+            blackhole.consume(distances);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DatasetState.SAMPLE)
+    public void isInWater(DatasetState state, Blackhole blackhole) {
+        for (Point point : state.sample) {
+            blackhole.consume(state.simulation.strTree.isInWater(point));
+        }
+    }
+
+    // The whole grid at once, compare with isInWater times the number of cells
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long[] waterMask(DatasetState state) {
+        return WaterMask.rasterize(state.grid, state.simulation.strTree.getWaters().items(),
+                state.simulation.strTree.getRivers().items());
+    }
+
+    // The whole grid at once, compare with initUrban times the number of cells
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long[] rasterInitUrban(DatasetState state) {
+        return new RasterUrbanizationEvaluator(state.simulation.urbanizationEvaluator, state.grid).evaluate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DatasetState.SAMPLE)
+    public void initUrban(DatasetState state, Blackhole blackhole) {
+        for (Point point : state.sample) {
+            blackhole.consume(state.simulation.urbanizationEvaluator.initUrban(point));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SimulationBenchmark {
+
+    // Every doIteration starts from the initial urban state, otherwise the city grows from call to call
+    @State(Scope.Thread)
+    public static class InitialState {
+        @Setup(Level.Invocation)
+        public void reset(DatasetState state) {
+            state.reset();
+        }
+    }
+
+    // The spatial index is already built by the state, this is the grid itself: distances, land and the urban mask
+    @Benchmark
+    public CellGrid getInitialCells(DatasetState state) {
+        return state.simulation.getInitialCells();
+    }
+
+    @Benchmark
+    public CellGrid doIteration(DatasetState state, InitialState initial) {
+        state.simulation.doIteration(state.grid);
+        return state.grid;
+    }
+
+    @Benchmark
+    public Segments segmentation(DatasetState state) {
+        return state.simulation.segmentation(state.grid);
+    }
+}
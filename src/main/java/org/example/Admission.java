@@ -0,0 +1,96 @@
+package org.example;
+
+import lombok.Getter;
+
+import java.util.Locale;
+
+/*
+Admission of a region before anything big is allocated: heap and time of the run are estimated
+from the feature counts, the shapefile sizes and the grid dimensions (boundsWidth * FACTOR / cellSize)
+and compared with the heap budget.
+ACCEPT - everything fits.
+LOW_MEMORY - fits only without the distance layers of the grid (64 bytes per cell) and without the spatial index
+after the initial grid is built, see Simulation.isLowMemory.
+COARSER_CELL_SIZE - does not fit even so, suggestedCellSize is the smallest cell size that fits in LOW_MEMORY mode
+(NaN if the features alone exceed the budget). The simulation still runs in LOW_MEMORY mode if asked to.
+The constants are rough averages, the estimate is meant to be right within a factor of two.
+*/
+public class Admission {
+    public enum Decision {
+        ACCEPT,
+        LOW_MEMORY,
+        COARSER_CELL_SIZE
+    }
+
+    private static final double HEADROOM = 0.8; // share of the budget the estimate may take
+    // state and scratch of a cell: 4 doubles, 2 ints, bit sets, summed-area table, segmentation buffers and labels
+    private static final long BYTES_PER_CELL = 4 * 8 + 2 * 4 + 1 + 4 + 21;
+    private static final long DISTANCE_BYTES_PER_CELL = 8L * CellGrid.PARAMETERS;
+    private static final long BYTES_PER_FEATURE = 200; // feature and geometry objects, index nodes
+    private static final double BYTES_PER_SHAPEFILE_BYTE = 3; // coordinates as JTS objects
+    private static final double QUERY_NANOS = 2000; // one spatial query of the initial grid
+    private static final double QUERIES_PER_CELL = CellGrid.PARAMETERS + 1; // distances, initUrban (water is rasterized)
+    private static final double ITERATION_NANOS_PER_CELL = 300;
+
+    @Getter
+    private final Decision decision;
+    @Getter
+    private final long cells;
+    @Getter
+    private final long heapBytes; // estimate of the normal mode
+    @Getter
+    private final long lowMemoryHeapBytes;
+    @Getter
+    private final long budgetBytes;
+    @Getter
+    private final double initSeconds;
+    @Getter
+    private final double iterationSeconds;
+    @Getter
+    private final double suggestedCellSize;
+
+    private Admission(Decision decision, long cells, long heapBytes, long lowMemoryHeapBytes, long budgetBytes,
+                      double initSeconds, double iterationSeconds, double suggestedCellSize) {
+        this.decision = decision;
+        this.cells = cells;
+        this.heapBytes = heapBytes;
+        this.lowMemoryHeapBytes = lowMemoryHeapBytes;
+        this.budgetBytes = budgetBytes;
+        this.initSeconds = initSeconds;
+        this.iterationSeconds = iterationSeconds;
+        this.suggestedCellSize = suggestedCellSize;
+    }
+
+    public static Admission evaluate(long features, long shapefileBytes, double boundsWidth, double boundsHeight,
+                                     double factor, double cellSize, boolean planar, int parallelism, long budgetBytes) {
+        long cells = (long) Math.ceil(boundsWidth * factor / cellSize) * (long) Math.ceil(boundsHeight * factor / cellSize);
+        long featureBytes = (long) ((features * BYTES_PER_FEATURE + shapefileBytes * BYTES_PER_SHAPEFILE_BYTE) * (planar ? 2 : 1));
+        long heap = featureBytes + cells * (BYTES_PER_CELL + DISTANCE_BYTES_PER_CELL);
+        long lowMemoryHeap = featureBytes + cells * BYTES_PER_CELL;
+        double initSeconds = cells * QUERIES_PER_CELL * QUERY_NANOS / Math.max(1, parallelism) / 1e9;
+        double iterationSeconds = cells * ITERATION_NANOS_PER_CELL / 1e9;
+        double available = budgetBytes * HEADROOM;
+
+        Decision decision;
+        double suggested = cellSize;
+        if (heap <= available) {
+            decision = Decision.ACCEPT;
+        } else if (lowMemoryHeap <= available) {
+            decision = Decision.LOW_MEMORY;
+        } else {
+            decision = Decision.COARSER_CELL_SIZE;
+            double cellBudget = available - featureBytes;
+            suggested = cellBudget <= 0 ? Double.NaN
+                    : Math.ceil(cellSize * Math.sqrt((double) cells * BYTES_PER_CELL / cellBudget));
+        }
+        return new Admission(decision, cells, heap, lowMemoryHeap, budgetBytes, initSeconds, iterationSeconds, suggested);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d cells, estimated heap %d MB (%d MB in low-memory mode) of %d MB, "
+                        + "initial grid ~%.0f s, iteration ~%.1f s, suggested cell size %.0f m",
+                decision, cells, heapBytes >> 20, lowMemoryHeapBytes >> 20, budgetBytes >> 20,
+                initSeconds, iterationSeconds, suggestedCellSize);
+    }
+}
@@ -0,0 +1,280 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/*
+Calibration of the regression constants b0 ... bSTC against a reference urban mask.
+The distances of the candidate cells (land, not urban in the initial grid) are copied once into one array per layer,
+so a candidate set of constants costs a few multiply-adds per cell and layer and one logistic, no spatial query.
+The fit maximizes the Bernoulli log-likelihood of the reference mask with suitability as the probability
+of the cell to be urban, the search is Nelder-Mead in the 9 constants. kConst is kept fixed.
+
+java -jar GeoAut.jar --calibrate <shapefile directory> <parameters | -> <reference.asc> [evaluations]
+prints the calibrated constants in the format of the parameters file.
+*/
+public class Calibrator {
+    private static final int CHUNK = 4096;
+
+    private final int n; // candidate cells
+    private final double[][] distances; // [layer][candidate], NaN replaced as in CellGrid.computeSuitability
+    private final boolean[] urban; // reference state of every candidate
+    private final double kConst;
+    private final ForkJoinPool pool;
+    private int evaluations;
+
+    public Calibrator(CellGrid grid, long[] reference, double kConst, double factor) {
+        if (!grid.hasDistances()) {
+            throw new IllegalArgumentException("The grid keeps no distances (low-memory mode), calibration needs them");
+        }
+        this.kConst = kConst;
+        int count = 0;
+        for (int index = 0; index < grid.getSize(); index++) {
+            if (isCandidate(grid, index)) {
+                count++;
+            }
+        }
+        n = count;
+        distances = new double[CellGrid.PARAMETERS][n];
+        urban = new boolean[n];
+        int c = 0;
+        for (int index = 0; index < grid.getSize(); index++) {
+            if (!isCandidate(grid, index)) {
+                continue;
+            }
+            for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+                double distance = grid.getNearestDistance(index, layer);
+                distances[layer][c] = Double.isNaN(distance) ? factor * kConst : distance;
+            }
+            urban[c] = CellGrid.get(reference, index);
+            c++;
+        }
+        pool = Simulation.getParallelism() > 1 ? new ForkJoinPool(Simulation.getParallelism()) : null;
+    }
+
+    private static boolean isCandidate(CellGrid grid, int index) {
+        return grid.isLand(index) && !grid.isUrban(index);
+    }
+
+    public int getCandidates() {
+        return n;
+    }
+
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    // Log-likelihood of the reference mask for the constants b
+    public double logLikelihood(double[] b) {
+        evaluations++;
+        int chunks = (n + CHUNK - 1) / CHUNK;
+        double[] partial = new double[chunks];
+        if (pool == null) {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                partial[chunk] = logLikelihood(b, chunk);
+            }
+        } else {
+            try {
+                pool.submit(() -> IntStream.range(0, chunks).parallel()
+                        .forEach(chunk -> partial[chunk] = logLikelihood(b, chunk))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        //the partial sums are added in a fixed order, the result does not depend on the parallelism
+        double sum = 0;
+        for (double value : partial) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private double logLikelihood(double[] b, int chunk) {
+        int from = chunk * CHUNK;
+        int to = Math.min(n, from + CHUNK);
+        double[] z = new double[to - from];
+        Arrays.fill(z, b[0]);
+        for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+            double coefficient = b[layer + 1] * kConst;
+            double[] column = distances[layer];
+            for (int c = from; c < to; c++) {
+                z[c - from] += coefficient * column[c];
+            }
+        }
+        //log p = z - log(1 + e^z), log(1 - p) = -log(1 + e^z)
+        double sum = 0;
+        for (int c = from; c < to; c++) {
+            double value = z[c - from];
+            double softplus = Math.max(value, 0) + Math.log1p(Math.exp(-Math.abs(value)));
+            sum += (urban[c] ? value : 0) - softplus;
+        }
+        return sum;
+    }
+
+    // Nelder-Mead from start with the initial simplex steps, returns the best constants found
+    public double[] calibrate(double[] start, double[] steps, int maxEvaluations, double tolerance) {
+        int d = start.length;
+        double[][] simplex = new double[d + 1][];
+        double[] cost = new double[d + 1];
+        simplex[0] = start.clone();
+        cost[0] = -logLikelihood(simplex[0]);
+        for (int k = 0; k < d; k++) {
+            simplex[k + 1] = start.clone();
+            simplex[k + 1][k] += steps[k];
+            cost[k + 1] = -logLikelihood(simplex[k + 1]);
+        }
+        int first = evaluations - d - 1;
+        Integer[] order = new Integer[d + 1];
+        while (evaluations - first < maxEvaluations) {
+            for (int k = 0; k <= d; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, (o1, o2) -> Double.compare(cost[o1], cost[o2]));
+            int best = order[0];
+            int worst = order[d];
+            int secondWorst = order[d - 1];
+            if (Math.abs(cost[worst] - cost[best]) <= tolerance * (Math.abs(cost[best]) + tolerance)) {
+                break;
+            }
+            double[] centroid = new double[d];
+            for (int k = 0; k <= d; k++) {
+                if (k != worst) {
+                    for (int l = 0; l < d; l++) {
+                        centroid[l] += simplex[k][l] / d;
+                    }
+                }
+            }
+            double[] reflected = along(centroid, simplex[worst], -1);
+            double reflectedCost = -logLikelihood(reflected);
+            if (reflectedCost < cost[best]) {
+                double[] expanded = along(centroid, simplex[worst], -2);
+                double expandedCost = -logLikelihood(expanded);
+                if (expandedCost < reflectedCost) {
+                    simplex[worst] = expanded;
+                    cost[worst] = expandedCost;
+                } else {
+                    simplex[worst] = reflected;
+                    cost[worst] = reflectedCost;
+                }
+            } else if (reflectedCost < cost[secondWorst]) {
+                simplex[worst] = reflected;
+                cost[worst] = reflectedCost;
+            } else {
+                boolean outside = reflectedCost < cost[worst];
+                double[] contracted = along(centroid, simplex[worst], outside ? -0.5 : 0.5);
+                double contractedCost = -logLikelihood(contracted);
+                if (contractedCost < (outside ? reflectedCost : cost[worst])) {
+                    simplex[worst] = contracted;
+                    cost[worst] = contractedCost;
+                } else {
+                    //shrink towards the best vertex
+                    for (int k = 0; k <= d; k++) {
+                        if (k != best) {
+                            simplex[k] = along(simplex[best], simplex[k], 0.5);
+                            cost[k] = -logLikelihood(simplex[k]);
+                        }
+                    }
+                }
+            }
+        }
+        int best = 0;
+        for (int k = 1; k <= d; k++) {
+            if (cost[k] < cost[best]) {
+                best = k;
+            }
+        }
+        return simplex[best];
+    }
+
+    // centroid + t * (point - centroid)
+    private static double[] along(double[] centroid, double[] point, double t) {
+        double[] result = new double[centroid.length];
+        for (int l = 0; l < result.length; l++) {
+            result[l] = centroid[l] + t * (point[l] - centroid[l]);
+        }
+        return result;
+    }
+
+    // Urban mask from an ESRI ASCII grid of the same size, e.g. urban.asc of the headless runner:
+    // cells with a value other than NODATA and 0 are urban
+    static long[] readMask(Path file, CellGrid grid) throws IOException {
+        long[] mask = new long[CellGrid.words(grid.getSize())];
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            int ncols = -1;
+            int nrows = -1;
+            String nodata = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] header = line.trim().split("\\s+");
+                if (header.length != 2 || !Character.isLetter(header[0].charAt(0))) {
+                    break;
+                }
+                String key = header[0].toLowerCase(Locale.ROOT);
+                if (key.equals("ncols")) {
+                    ncols = Integer.parseInt(header[1]);
+                } else if (key.equals("nrows")) {
+                    nrows = Integer.parseInt(header[1]);
+                } else if (key.equals("nodata_value")) {
+                    nodata = header[1];
+                }
+            }
+            if (ncols != grid.getWidth() || nrows != grid.getHeight()) {
+                throw new IOException("The reference is " + ncols + "x" + nrows + " cells, the grid is "
+                        + grid.getWidth() + "x" + grid.getHeight());
+            }
+            double nodataValue = nodata == null ? Double.NaN : Double.parseDouble(nodata);
+            for (int j = 0; j < nrows && line != null; j++, line = reader.readLine()) {
+                String[] values = line.trim().split("\\s+");
+                for (int i = 0; i < ncols; i++) {
+                    double value = Double.parseDouble(values[i]);
+                    if (value != nodataValue && value != 0) {
+                        CellGrid.set(mask, grid.index(i, j), true);
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: --calibrate <shapefile directory> <parameters.properties | -> <reference.asc> [evaluations]");
+            System.exit(2);
+        }
+        if (!args[1].equals("-")) {
+            HeadlessRunner.applyParameters(Paths.get(args[1]));
+        }
+        int maxEvaluations = args.length == 4 ? Integer.parseInt(args[3]) : 5000;
+        Simulation simulation = new Simulation(args[0]);
+        CellGrid grid = simulation.getInitialCells();
+        Calibrator calibrator = new Calibrator(grid, readMask(Paths.get(args[2]), grid),
+                Simulation.getKConst(), simulation.suitabilityFactor());
+        double[] start = Simulation.getRegressionConstants();
+        double[] steps = new double[start.length];
+        for (int k = 0; k < steps.length; k++) {
+            steps[k] = Math.max(0.1, Math.abs(start[k]) / 2);
+        }
+        long time = System.nanoTime();
+        double[] b = calibrator.calibrate(start, steps, maxEvaluations, 1e-9);
+        double seconds = (System.nanoTime() - time) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "# %d candidate cells, %d evaluations in %.1f s, log-likelihood %.3f -> %.3f",
+                calibrator.getCandidates(), calibrator.getEvaluations(), seconds,
+                calibrator.logLikelihood(start), calibrator.logLikelihood(b)));
+        String[] names = {"b0", "bRD", "bHW", "bRW", "bSW", "bMC", "bDC", "bLTC", "bSTC"};
+        for (int k = 0; k < names.length; k++) {
+            System.out.println(String.format(Locale.ROOT, "%s=%.6f", names[k], b[k]));
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,218 @@
+package org.example;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+import static java.lang.Double.isNaN;
+
+/*
+Flat storage of the simulation grid. Cell (i, j) lives at index i * height + j, so every column
+is one contiguous run and stencil loops walk memory in order. Boolean layers are packed 64 cells per long.
+*/
+public class CellGrid {
+    public static final int PARAMETERS = Simulation.Parameters.values().length;
+
+    @Getter
+    private final int width; // number of cells along x (index i)
+    @Getter
+    private final int height; // number of cells along y (index j)
+    @Getter
+    private final int size;
+    @Getter
+    private final double degreeOfPerturbation;
+
+    //centroid coordinates: x of every column, y of every row, and the steps between them in degrees
+    final double[] centroidX;
+    final double[] centroidY;
+    @Getter
+    private final double stepX;
+    @Getter
+    private final double stepY; // negative, rows go from north to south
+
+    //static layers
+    final double[] nearestDistances; // PARAMETERS distances per cell, null in the low-memory mode
+    final double[] suitability;
+    final long[] land;
+
+    //state of the simulation
+    final double[] developmentProbability;
+    final double[] neighbourhoodMeanUrban;
+    final double[] randomForRA;
+    final long[] urban;
+    final int[] newUrbanAt;
+    final int[] curSegment;
+
+    public CellGrid(double[] centroidX, double[] centroidY, double stepX, double stepY, double degreeOfPerturbation) {
+        this(centroidX, centroidY, stepX, stepY, degreeOfPerturbation, true);
+    }
+
+    // Without distances the suitability can only be computed from distances passed in, see computeSuitability
+    public CellGrid(double[] centroidX, double[] centroidY, double stepX, double stepY, double degreeOfPerturbation,
+                    boolean withDistances) {
+        this.width = centroidX.length;
+        this.height = centroidY.length;
+        this.size = width * height;
+        this.centroidX = centroidX;
+        this.centroidY = centroidY;
+        this.stepX = stepX;
+        this.stepY = stepY;
+        this.degreeOfPerturbation = degreeOfPerturbation;
+        nearestDistances = withDistances ? new double[size * PARAMETERS] : null;
+        suitability = new double[size];
+        land = new long[words(size)];
+        developmentProbability = new double[size];
+        neighbourhoodMeanUrban = new double[size];
+        randomForRA = new double[size];
+        urban = new long[words(size)];
+        newUrbanAt = new int[size];
+        Arrays.fill(newUrbanAt, Integer.MAX_VALUE);
+        curSegment = new int[size];
+    }
+
+    // Replica for ensemble runs: the static layers are shared with source, the state is a copy of its current state
+    private CellGrid(CellGrid source) {
+        width = source.width;
+        height = source.height;
+        size = source.size;
+        centroidX = source.centroidX;
+        centroidY = source.centroidY;
+        stepX = source.stepX;
+        stepY = source.stepY;
+        degreeOfPerturbation = source.degreeOfPerturbation;
+        nearestDistances = source.nearestDistances;
+        suitability = source.suitability;
+        land = source.land;
+        developmentProbability = new double[size];
+        neighbourhoodMeanUrban = new double[size];
+        randomForRA = new double[size];
+        urban = source.urban.clone();
+        newUrbanAt = source.newUrbanAt.clone();
+        curSegment = new int[size];
+    }
+
+    public CellGrid replica() {
+        return new CellGrid(this);
+    }
+
+    public int index(int i, int j) {
+        return i * height + j;
+    }
+
+    public int column(int index) {
+        return index / height;
+    }
+
+    public int row(int index) {
+        return index % height;
+    }
+
+    public double getCentroidX(int i) {
+        return centroidX[i];
+    }
+
+    public double getCentroidY(int j) {
+        return centroidY[j];
+    }
+
+    // Column whose centroid is the closest to x, may lie outside the grid
+    public int columnOf(double x) {
+        return (int) Math.floor((x - centroidX[0]) / stepX + 0.5);
+    }
+
+    // Row whose centroid is the closest to y, may lie outside the grid
+    public int rowOf(double y) {
+        return (int) Math.floor((y - centroidY[0]) / stepY + 0.5);
+    }
+
+    public boolean isUrban(int index) {
+        return get(urban, index);
+    }
+
+    public void setUrban(int index, boolean value) {
+        set(urban, index, value);
+    }
+
+    public boolean isLand(int index) {
+        return get(land, index);
+    }
+
+    public void setLand(int index, boolean value) {
+        set(land, index, value);
+    }
+
+    public double getSuitability(int index) {
+        return suitability[index];
+    }
+
+    public double getDevelopmentProbability(int index) {
+        return developmentProbability[index];
+    }
+
+    public int getNewUrbanAt(int index) {
+        return newUrbanAt[index];
+    }
+
+    public double getNearestDistance(int index, int parameter) {
+        return nearestDistances[index * PARAMETERS + parameter];
+    }
+
+    public boolean hasDistances() {
+        return nearestDistances != null;
+    }
+
+    public void computeSuitability(int index, double[] regressionConstants, double kConst, double factor) {
+        if (nearestDistances == null) {
+            throw new IllegalStateException("The grid keeps no distances (low-memory mode)");
+        }
+        computeSuitability(index, nearestDistances, index * PARAMETERS, regressionConstants, kConst, factor);
+    }
+
+    // Suitability from the PARAMETERS distances of the cell starting at distances[offset]
+    public void computeSuitability(int index, double[] distances, int offset, double[] regressionConstants,
+                                   double kConst, double factor) {
+        //factor = min(boundsHeight, boundsWidth) * FACTOR / (2)
+        double zValue = 0;
+        for (int k = 0; k < PARAMETERS; k++) {
+            if (isNaN(distances[offset + k])) {
+                zValue += regressionConstants[k + 1] * factor * kConst;
+            } else {
+                zValue += regressionConstants[k + 1] * distances[offset + k];
+            }
+        }
+        zValue *= kConst;
+        zValue += regressionConstants[0];
+        suitability[index] = logistic(zValue);
+    }
+
+    // exp(z) / (1 + exp(z)) without overflow for any z
+    static double logistic(double z) {
+        if (z >= 0) {
+            return 1 / (1 + Math.exp(-z));
+        }
+        double exp = Math.exp(z);
+        return exp / (1 + exp);
+    }
+
+    // Stores the random part of RA for the cell (a number from [0, 1)) and returns RA
+    public double setRA(int index, double random) {
+        randomForRA[index] = random;
+        return 1 + Math.pow(-Math.log(random), degreeOfPerturbation);
+    }
+
+    static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    static boolean get(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    static void set(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+}
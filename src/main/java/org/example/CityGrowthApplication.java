@@ -11,6 +11,7 @@ import javafx.scene.control.*;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
@@ -23,7 +24,7 @@ public class CityGrowthApplication extends Application {
     private Service<Void> simulationService;
     private VBox root;
     private String path;
-    private Cell[][] cellsOfSimulation;
+    private CellGrid cellsOfSimulation;
 
     public CityGrowthApplication() {
         root = new VBox();
@@ -313,6 +314,23 @@ public class CityGrowthApplication extends Application {
             try {
                 // Создаем экземпляр симуляции, передав ему необходимые параметры
                 simulation = new Simulation(path);
+                Admission admission = simulation.getAdmission();
+                if (admission.getDecision() == Admission.Decision.COARSER_CELL_SIZE
+                        && !Double.isNaN(admission.getSuggestedCellSize())) {
+                    // Предлагаем более крупные клетки, иначе симуляция идет в экономном режиме и может не уместиться в память
+                    Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+                    alert.setTitle("Большой участок");
+                    alert.setHeaderText("Участок не помещается в доступную память при размере клетки "
+                            + Simulation.getCellSize() + " м");
+                    alert.setContentText(String.format("Клеток: %d, нужно около %d МБ из %d МБ.%n"
+                                    + "Использовать размер клетки %.0f м?",
+                            admission.getCells(), admission.getLowMemoryHeapBytes() >> 20,
+                            admission.getBudgetBytes() >> 20, admission.getSuggestedCellSize()));
+                    if (alert.showAndWait().filter(button -> button == ButtonType.OK).isPresent()) {
+                        Simulation.setCellSize(admission.getSuggestedCellSize());
+                        simulation = new Simulation(path);
+                    }
+                }
                 // Создаем сервис для выполнения симуляции в фоновом потоке
                 simulationService = new Service<Void>() {
                     @Override
@@ -345,14 +363,9 @@ public class CityGrowthApplication extends Application {
                 waitStage.close();
                 Alert alert = new Alert(Alert.AlertType.ERROR);
                 alert.setTitle("Ошибка данных");
-                if ("Too big!".equals(exception.getMessage())) {
-                    alert.setHeaderText("Слишком большой размер входных данных");
-                    alert.setContentText("Пожалуйста, выберите меньший участок для симуляции и попробуйте снова.");
-                } else {
-                    alert.setHeaderText("Неправильный формат входных данных");
-                    alert.setContentText("Пожалуйста, проверьте, что выбрали нужную папку, и попробуйте снова.\n" +
-                            exception.getCause() + exception.getMessage());
-                }
+                alert.setHeaderText("Неправильный формат входных данных");
+                alert.setContentText("Пожалуйста, проверьте, что выбрали нужную папку, и попробуйте снова.\n" +
+                        exception.getCause() + exception.getMessage());
                 alert.showAndWait();
             }
         });
@@ -360,8 +373,29 @@ public class CityGrowthApplication extends Application {
         // Добавляем кнопку запуска в корневой элемент
         root.getChildren().add(startButton);
 
+        // Кнопка воспроизведения сохраненной истории симуляции
+        Button historyButton = new Button("Открыть историю");
+        historyButton.setOnAction(e -> {
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Открыть историю симуляции");
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("History files (*.gz)", "*.gz"));
+            File file = fileChooser.showOpenDialog(primaryStage);
+            if (file != null) {
+                try {
+                    new UI(DeltaLog.load(file.toPath())).start(primaryStage);
+                } catch (IOException exception) {
+                    Alert alert = new Alert(Alert.AlertType.ERROR);
+                    alert.setTitle("Ошибка данных");
+                    alert.setHeaderText("Не удалось открыть историю");
+                    alert.setContentText(exception.getMessage());
+                    alert.showAndWait();
+                }
+            }
+        });
+        root.getChildren().add(historyButton);
+
         // Создаем сцену и устанавливаем ее в окно
-        Scene scene = new Scene(root, 260, 150);
+        Scene scene = new Scene(root, 260, 190);
         primaryStage.setScene(scene);
         primaryStage.setResizable(false);
         primaryStage.setTitle("Стартовое окно");
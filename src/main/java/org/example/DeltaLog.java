@@ -0,0 +1,214 @@
+package org.example;
+
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+History of a simulation: the initial state of the grid and, for every iteration, the cells that became urban at it.
+A set of cells is stored as the gaps between their ascending indices, each gap a varint (7 bits per byte),
+so a step forward or back costs the number of changed cells and an iteration takes a few bytes per new cell.
+The file is the same data gzipped, it replays the simulation without the shapefiles.
+*/
+public class DeltaLog {
+    private static final int MAGIC = 0x47454f44; // "GEOD"
+    private static final int VERSION = 1;
+
+    private final double[] centroidX;
+    private final double[] centroidY;
+    private final double stepX;
+    private final double stepY;
+    @Getter
+    private final double cellSize;
+    private final byte[] water;
+    private final byte[] initialUrban;
+    private final List<byte[]> iterations = new ArrayList<>(); // iterations.get(t - 1) - cells urban since t
+
+    public DeltaLog(CellGrid grid, double cellSize) {
+        centroidX = grid.centroidX.clone();
+        centroidY = grid.centroidY.clone();
+        stepX = grid.getStepX();
+        stepY = grid.getStepY();
+        this.cellSize = cellSize;
+        ByteArrayOutputStream waterCells = new ByteArrayOutputStream();
+        ByteArrayOutputStream urbanCells = new ByteArrayOutputStream();
+        int lastWater = -1;
+        int lastUrban = -1;
+        for (int index = 0; index < grid.getSize(); index++) {
+            if (!grid.isLand(index)) {
+                writeVarint(waterCells, index - lastWater);
+                lastWater = index;
+            }
+            if (grid.isUrban(index) && grid.getNewUrbanAt(index) < 0) {
+                writeVarint(urbanCells, index - lastUrban);
+                lastUrban = index;
+            }
+        }
+        water = waterCells.toByteArray();
+        initialUrban = urbanCells.toByteArray();
+    }
+
+    private DeltaLog(double[] centroidX, double[] centroidY, double stepX, double stepY, double cellSize,
+                     byte[] water, byte[] initialUrban) {
+        this.centroidX = centroidX;
+        this.centroidY = centroidY;
+        this.stepX = stepX;
+        this.stepY = stepY;
+        this.cellSize = cellSize;
+        this.water = water;
+        this.initialUrban = initialUrban;
+    }
+
+    // Number of recorded iterations
+    public int size() {
+        return iterations.size();
+    }
+
+    // Records the cells that became urban at the given iteration, the iterations have to come in order
+    public void record(CellGrid grid, int iteration) {
+        if (iteration != iterations.size() + 1) {
+            throw new IllegalArgumentException("Iteration " + iteration + " after " + iterations.size());
+        }
+        ByteArrayOutputStream cells = new ByteArrayOutputStream();
+        int last = -1;
+        for (int index = 0; index < grid.getSize(); index++) {
+            if (grid.getNewUrbanAt(index) == iteration) {
+                writeVarint(cells, index - last);
+                last = index;
+            }
+        }
+        iterations.add(cells.toByteArray());
+    }
+
+    // Cells that became urban at the iteration, in ascending order
+    public int[] changedAt(int iteration) {
+        if (iteration < 1 || iteration > iterations.size()) {
+            return new int[0];
+        }
+        return decode(iterations.get(iteration - 1));
+    }
+
+    // Grid in the state after the last recorded iteration, newUrbanAt tells when every cell became urban
+    public CellGrid replay() {
+        CellGrid grid = new CellGrid(centroidX.clone(), centroidY.clone(), stepX, stepY, 0, false);
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.setLand(index, true);
+        }
+        for (int index : decode(water)) {
+            grid.setLand(index, false);
+        }
+        for (int index : decode(initialUrban)) {
+            grid.setUrban(index, true);
+            grid.newUrbanAt[index] = -1;
+        }
+        for (int t = 1; t <= iterations.size(); t++) {
+            for (int index : changedAt(t)) {
+                grid.setUrban(index, true);
+                grid.newUrbanAt[index] = t;
+            }
+        }
+        return grid;
+    }
+
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(centroidX.length);
+            out.writeInt(centroidY.length);
+            for (double x : centroidX) {
+                out.writeDouble(x);
+            }
+            for (double y : centroidY) {
+                out.writeDouble(y);
+            }
+            out.writeDouble(stepX);
+            out.writeDouble(stepY);
+            out.writeDouble(cellSize);
+            writeBlock(out, water);
+            writeBlock(out, initialUrban);
+            out.writeInt(iterations.size());
+            for (byte[] iteration : iterations) {
+                writeBlock(out, iteration);
+            }
+        }
+    }
+
+    public static DeltaLog load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a simulation history: " + file);
+            }
+            double[] centroidX = new double[in.readInt()];
+            double[] centroidY = new double[in.readInt()];
+            for (int i = 0; i < centroidX.length; i++) {
+                centroidX[i] = in.readDouble();
+            }
+            for (int j = 0; j < centroidY.length; j++) {
+                centroidY[j] = in.readDouble();
+            }
+            double stepX = in.readDouble();
+            double stepY = in.readDouble();
+            double cellSize = in.readDouble();
+            DeltaLog log = new DeltaLog(centroidX, centroidY, stepX, stepY, cellSize, readBlock(in), readBlock(in));
+            int count = in.readInt();
+            for (int t = 0; t < count; t++) {
+                log.iterations.add(readBlock(in));
+            }
+            return log;
+        }
+    }
+
+    private static void writeBlock(DataOutputStream out, byte[] block) throws IOException {
+        out.writeInt(block.length);
+        out.write(block);
+    }
+
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        byte[] block = new byte[in.readInt()];
+        in.readFully(block);
+        return block;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int[] decode(byte[] block) {
+        int count = 0;
+        for (byte b : block) {
+            if (b >= 0) {
+                count++;
+            }
+        }
+        int[] cells = new int[count];
+        int position = 0;
+        int last = -1;
+        for (int c = 0; c < count; c++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = block[position++];
+                gap |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            last += gap;
+            cells[c] = last;
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,185 @@
+package org.example;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+import org.locationtech.jts.geom.util.PointExtracter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Distance layers of the grid from a raster instead of one nearest-neighbour query per cell. The features of a layer
+are burnt into the cells they touch and an exact Euclidean distance transform (Felzenszwalb & Huttenlocher)
+spreads the distance between cell centroids to the whole grid in linear time. That distance can be off by up to
+half a cell diagonal, so cells within the refinement radius of a feature get the exact distance from the spatial index.
+Features that leave the grid are not fully rasterized either: where they may be closer than anything burnt
+(the raster distance exceeds the distance to the border of the grid) the cell is queried exactly as well.
+*/
+public class DistanceTransform {
+    private static final double INF = 1e20;
+
+    private final CellGrid grid;
+    private final STRTree strTree;
+    private final GeometryFactory geometryFactory;
+    private final double sx; // metres between neighbouring columns
+    private final double sy; // metres between neighbouring rows
+    private final double refinementRadius; // metres
+    private final Envelope extent; // footprint of the grid in degrees
+    private final boolean[] leavesGrid; // the layer has features outside the grid
+
+    public DistanceTransform(CellGrid grid, STRTree strTree, GeometryFactory geometryFactory, double refinementCells) {
+        this.grid = grid;
+        this.strTree = strTree;
+        this.geometryFactory = geometryFactory;
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        double midLat = (grid.getCentroidY(0) + grid.getCentroidY(height - 1)) / 2;
+        sx = Math.abs(grid.getStepX()) * LocalProjection.metresPerDegreeLon(midLat);
+        sy = Math.abs(grid.getStepY()) * LocalProjection.metresPerDegreeLat(midLat);
+        refinementRadius = refinementCells * Math.max(sx, sy);
+        extent = new Envelope(grid.getCentroidX(0) - grid.getStepX() / 2, grid.getCentroidX(width - 1) + grid.getStepX() / 2,
+                grid.getCentroidY(height - 1) + grid.getStepY() / 2, grid.getCentroidY(0) - grid.getStepY() / 2);
+        leavesGrid = new boolean[CellGrid.PARAMETERS];
+    }
+
+    // Fills the layer of every cell with the raster distance in metres, NaN if the layer has no features at all
+    public void transform(int layer) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        List<Geometry> features = strTree.getIndexes()[layer].items();
+        if (features.isEmpty()) {
+            for (int index = 0; index < grid.getSize(); index++) {
+                grid.nearestDistances[index * CellGrid.PARAMETERS + layer] = Double.NaN;
+            }
+            return;
+        }
+        double[] f = new double[grid.getSize()];
+        Arrays.fill(f, INF);
+        for (Geometry feature : features) {
+            if (!extent.contains(feature.getEnvelopeInternal())) {
+                leavesGrid[layer] = true;
+            }
+            burn(feature, f);
+        }
+
+        int n = Math.max(width, height);
+        double[] line = new double[n];
+        double[] result = new double[n];
+        int[] v = new int[n];
+        double[] z = new double[n + 1];
+        // along the rows of every column, they are contiguous
+        for (int i = 0; i < width; i++) {
+            System.arraycopy(f, i * height, line, 0, height);
+            transform1d(line, height, sy * sy, result, v, z);
+            System.arraycopy(result, 0, f, i * height, height);
+        }
+        // along the columns of every row
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                line[i] = f[i * height + j];
+            }
+            transform1d(line, width, sx * sx, result, v, z);
+            for (int i = 0; i < width; i++) {
+                grid.nearestDistances[(i * height + j) * CellGrid.PARAMETERS + layer] =
+                        result[i] >= INF / 2 ? Double.POSITIVE_INFINITY : Math.sqrt(result[i]);
+            }
+        }
+    }
+
+    // Replaces the raster distance of the column's cells by the exact one wherever the raster may be wrong
+    public void refineColumn(int i) {
+        for (int j = 0; j < grid.getHeight(); j++) {
+            int offset = grid.index(i, j) * CellGrid.PARAMETERS;
+            Point centroid = null;
+            for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+                double distance = grid.nearestDistances[offset + layer];
+                if (Double.isNaN(distance)) {
+                    continue;
+                }
+                if (distance <= refinementRadius || (leavesGrid[layer] && distance > distanceToBorder(i, j))) {
+                    if (centroid == null) {
+                        centroid = geometryFactory.createPoint(new Coordinate(grid.getCentroidX(i), grid.getCentroidY(j)));
+                    }
+                    grid.nearestDistances[offset + layer] = strTree.getNearestDistance(centroid, layer);
+                }
+            }
+        }
+    }
+
+    private double distanceToBorder(int i, int j) {
+        double toColumnBorder = Math.min(i + 0.5, grid.getWidth() - i - 0.5) * sx;
+        double toRowBorder = Math.min(j + 0.5, grid.getHeight() - j - 0.5) * sy;
+        return Math.min(toColumnBorder, toRowBorder);
+    }
+
+    private void burn(Geometry feature, double[] f) {
+        for (Object point : PointExtracter.getPoints(feature)) {
+            Coordinate c = ((Point) point).getCoordinate();
+            mark(f, grid.columnOf(c.x), grid.rowOf(c.y));
+        }
+        for (Object line : LinearComponentExtracter.getLines(feature)) {
+            Coordinate[] coordinates = ((LineString) line).getCoordinates();
+            for (int k = 0; k + 1 < coordinates.length; k++) {
+                burnSegment(f, coordinates[k], coordinates[k + 1]);
+            }
+            if (coordinates.length == 1) {
+                mark(f, grid.columnOf(coordinates[0].x), grid.rowOf(coordinates[0].y));
+            }
+        }
+    }
+
+    // Marks every cell the segment passes through, sampling it at least twice per cell
+    private void burnSegment(double[] f, Coordinate a, Coordinate b) {
+        double u0 = (a.x - grid.getCentroidX(0)) / grid.getStepX();
+        double v0 = (a.y - grid.getCentroidY(0)) / grid.getStepY();
+        double u1 = (b.x - grid.getCentroidX(0)) / grid.getStepX();
+        double v1 = (b.y - grid.getCentroidY(0)) / grid.getStepY();
+        int steps = (int) Math.ceil(2 * Math.max(Math.abs(u1 - u0), Math.abs(v1 - v0)));
+        for (int s = 0; s <= steps; s++) {
+            double t = steps == 0 ? 0 : (double) s / steps;
+            mark(f, (int) Math.floor(u0 + (u1 - u0) * t + 0.5), (int) Math.floor(v0 + (v1 - v0) * t + 0.5));
+        }
+    }
+
+    private void mark(double[] f, int i, int j) {
+        if (0 <= i && i < grid.getWidth() && 0 <= j && j < grid.getHeight()) {
+            f[i * grid.getHeight() + j] = 0;
+        }
+    }
+
+    // Lower envelope of the parabolas s2 * (p - q)^2 + f[q], d[p] = min over q
+    private static void transform1d(double[] f, int n, double s2, double[] d, int[] v, double[] z) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double s = intersection(f, s2, v[k], q);
+            while (s <= z[k]) {
+                k--;
+                s = intersection(f, s2, v[k], q);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) {
+                k++;
+            }
+            double dq = q - v[k];
+            d[q] = s2 * dq * dq + f[v[k]];
+        }
+    }
+
+    private static double intersection(double[] f, double s2, int p, int q) {
+        return ((f[q] + s2 * q * q) - (f[p] + s2 * p * p)) / (2 * s2 * (q - p));
+    }
+}
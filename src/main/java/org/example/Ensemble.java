@@ -0,0 +1,79 @@
+package org.example;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/*
+Monte Carlo ensemble of independent replicas of one simulation. The static layers of the initial grid are built once
+and shared, every replica owns only the mutable state of its grid. A finished replica is merged into the aggregate
+and dropped, so at most `parallelism` replicas are in memory at a time.
+Replica r is seeded from the seed of the simulation and r, the ensemble is reproducible at any parallelism.
+*/
+public class Ensemble {
+    private final Simulation simulation;
+    private final CellGrid initial;
+    private final int[] urbanCount; // replicas in which the cell ends up urban
+    private final int[] urbanizedCount; // replicas in which the cell became urban during the run
+    private final long[] newUrbanAtSum; // sum of newUrbanAt over those replicas
+    private int replicas;
+
+    public Ensemble(Simulation simulation, CellGrid initial) {
+        this.simulation = simulation;
+        this.initial = initial;
+        urbanCount = new int[initial.getSize()];
+        urbanizedCount = new int[initial.getSize()];
+        newUrbanAtSum = new long[initial.getSize()];
+    }
+
+    // Runs replicas [replicas, replicas + count), each for the given number of iterations
+    public void run(int count, int iterations) {
+        int first = getReplicas();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Simulation.getParallelism()));
+        try {
+            pool.submit(() -> IntStream.range(first, first + count).parallel().forEach(r -> {
+                Simulation replica = simulation.replica(r);
+                CellGrid grid = initial.replica();
+                for (int iteration = 0; iteration < iterations; iteration++) {
+                    replica.doIteration(grid);
+                }
+                merge(grid);
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private synchronized void merge(CellGrid grid) {
+        for (int index = 0; index < grid.getSize(); index++) {
+            if (grid.isUrban(index)) {
+                urbanCount[index]++;
+                int newUrbanAt = grid.getNewUrbanAt(index);
+                if (newUrbanAt > 0 && newUrbanAt != Integer.MAX_VALUE) {
+                    urbanizedCount[index]++;
+                    newUrbanAtSum[index] += newUrbanAt;
+                }
+            }
+        }
+        replicas++;
+    }
+
+    public synchronized int getReplicas() {
+        return replicas;
+    }
+
+    // Share of the replicas in which the cell is urban at the end
+    public synchronized double getUrbanFrequency(int index) {
+        return replicas == 0 ? 0 : (double) urbanCount[index] / replicas;
+    }
+
+    // Mean iteration the cell became urban at over the replicas where it did, NaN if it never did
+    public synchronized double getMeanNewUrbanAt(int index) {
+        return urbanizedCount[index] == 0 ? Double.NaN : (double) newUrbanAtSum[index] / urbanizedCount[index];
+    }
+}
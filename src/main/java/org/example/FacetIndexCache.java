@@ -0,0 +1,136 @@
+package org.example;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.operation.distance.DistanceOp;
+import org.locationtech.jts.operation.distance.IndexedFacetDistance;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+Point queries against large geometries (long roads, big landuse and water polygons) through prepared indexes of
+their segments: IndexedFacetDistance for distances and nearest points, IndexedPointInAreaLocator for the inside
+of polygons, so a query takes O(log segments) instead of a walk over all of them.
+Every STRTree has its own cache of the geometries it indexes, registered by identity before the first query, so the
+indexes go away with the STRTree. The indexes of a geometry with at least MIN_VERTICES vertices are built on its
+first query and shared by all threads. The cache holds geometries of MAX_VERTICES vertices in total, past that
+arbitrary entries are dropped (and built again when queried again). Pairs without a point or with a small or
+unregistered geometry go to JTS as before.
+Results are the ones of Geometry.distance, Geometry.isWithinDistance, DistanceOp.nearestPoints and Geometry.contains.
+*/
+public class FacetIndexCache {
+    private static final int MIN_VERTICES = 64;
+    private static final long MAX_VERTICES = 4_000_000;
+
+    // registered geometry -> its indexes, null while not built; only read once the queries start
+    private final Map<Geometry, AtomicReference<Prepared>> cache = new IdentityHashMap<>();
+    private final AtomicLong cachedVertices = new AtomicLong();
+
+    private static class Prepared {
+        final IndexedFacetDistance facets;
+        final IndexedPointInAreaLocator area; // null if the geometry is not polygonal
+        final int vertices;
+
+        Prepared(Geometry geometry) {
+            facets = new IndexedFacetDistance(geometry);
+            area = geometry instanceof Polygonal ? new IndexedPointInAreaLocator(geometry) : null;
+            vertices = geometry.getNumPoints();
+        }
+
+        boolean covers(Point point) {
+            return area != null && area.locate(point.getCoordinate()) != Location.EXTERIOR;
+        }
+    }
+
+    public double distance(Geometry g1, Geometry g2) {
+        Point point = g2 instanceof Point ? (Point) g2 : g1 instanceof Point ? (Point) g1 : null;
+        Prepared prepared = point == null ? null : prepared(point == g2 ? g1 : g2);
+        if (prepared == null) {
+            return g1.distance(g2);
+        }
+        return prepared.covers(point) ? 0 : prepared.facets.distance(point);
+    }
+
+    public boolean isWithinDistance(Geometry g1, Geometry g2, double distance) {
+        Point point = g2 instanceof Point ? (Point) g2 : g1 instanceof Point ? (Point) g1 : null;
+        Prepared prepared = point == null ? null : prepared(point == g2 ? g1 : g2);
+        if (prepared == null) {
+            return g1.isWithinDistance(g2, distance);
+        }
+        return prepared.covers(point) || prepared.facets.isWithinDistance(point, distance);
+    }
+
+    // Nearest point of g1, then the nearest point of g2
+    public Coordinate[] nearestPoints(Geometry g1, Geometry g2) {
+        Point point = g2 instanceof Point ? (Point) g2 : g1 instanceof Point ? (Point) g1 : null;
+        Prepared prepared = point == null ? null : prepared(point == g2 ? g1 : g2);
+        if (prepared == null) {
+            return new DistanceOp(g1, g2).nearestPoints();
+        }
+        if (prepared.covers(point)) {
+            return new Coordinate[]{point.getCoordinate(), point.getCoordinate()};
+        }
+        //the first point is on the prepared geometry
+        Coordinate[] points = prepared.facets.nearestPoints(point);
+        return point == g2 ? points : new Coordinate[]{points[1], points[0]};
+    }
+
+    public boolean contains(Geometry geometry, Point point) {
+        Prepared prepared = prepared(geometry);
+        if (prepared == null || prepared.area == null) {
+            return geometry.contains(point);
+        }
+        return prepared.area.locate(point.getCoordinate()) == Location.INTERIOR;
+    }
+
+    // Makes the large geometries queryable through their indexes, not thread-safe and only before the first query
+    public void register(Iterable<? extends Geometry> geometries) {
+        for (Geometry geometry : geometries) {
+            if (geometry.getNumPoints() >= MIN_VERTICES) {
+                cache.put(geometry, new AtomicReference<>());
+            }
+        }
+    }
+
+    // Indexes of the geometry, null if it is too small to need them or not registered
+    private Prepared prepared(Geometry geometry) {
+        AtomicReference<Prepared> slot = cache.get(geometry);
+        if (slot == null) {
+            return null;
+        }
+        Prepared prepared = slot.get();
+        if (prepared != null) {
+            return prepared;
+        }
+        prepared = new Prepared(geometry);
+        if (!slot.compareAndSet(null, prepared)) {
+            Prepared other = slot.get();
+            return other != null ? other : prepared;
+        }
+        if (cachedVertices.addAndGet(prepared.vertices) > MAX_VERTICES) {
+            evict();
+        }
+        return prepared;
+    }
+
+    // Drops entries down to three quarters of the budget, so that not every new geometry evicts
+    private void evict() {
+        for (AtomicReference<Prepared> slot : cache.values()) {
+            if (cachedVertices.get() <= MAX_VERTICES / 4 * 3) {
+                return;
+            }
+            Prepared prepared = slot.get();
+            //another thread may be evicting too, only the one that clears the entry counts it
+            if (prepared != null && slot.compareAndSet(prepared, null)) {
+                cachedVertices.addAndGet(-prepared.vertices);
+            }
+        }
+    }
+}
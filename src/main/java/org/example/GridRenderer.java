@@ -0,0 +1,137 @@
+package org.example;
+
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.paint.Color;
+
+/*
+The grid as one image with a pixel per cell: colours live in an int[] ARGB buffer that is written into a WritableImage,
+the ImageView scales it to the window without smoothing. Going to another iteration only recolours the cells
+that became urban at the iterations involved (taken from the DeltaLog) and writes back the rectangle around them.
+Zoom with the mouse wheel, pan by dragging.
+*/
+public class GridRenderer {
+    private static final int WATER = argb(Color.BLUE);
+    private static final int URBAN = argb(Color.ORANGE);
+    private static final int NEW_URBAN = argb(Color.BLACK);
+    private static final int LAND = argb(Color.DARKGRAY);
+    private static final double MAX_ZOOM = 64;
+
+    private final CellGrid cells;
+    private final int width;
+    private final int height;
+    private final int[] pixels; // pixel (i, j) at j * width + i
+    private final WritableImage image;
+    private final ImageView view;
+    private final ScrollPane pane;
+    private final double baseWidth;
+    private final double baseHeight;
+    private final DeltaLog log;
+    private double zoom = 1;
+    private int iteration = 0;
+
+    public GridRenderer(CellGrid cells, DeltaLog log, double viewWidth, double viewHeight) {
+        this.cells = cells;
+        this.log = log;
+        width = cells.getWidth();
+        height = cells.getHeight();
+        pixels = new int[width * height];
+        image = new WritableImage(width, height);
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                pixels[j * width + i] = colour(cells.index(i, j));
+            }
+        }
+        write(0, 0, width - 1, height - 1);
+
+        baseWidth = viewWidth;
+        baseHeight = viewHeight;
+        view = new ImageView(image);
+        view.setSmooth(false);
+        view.setPreserveRatio(false);
+        view.setFitWidth(baseWidth);
+        view.setFitHeight(baseHeight);
+        pane = new ScrollPane(view);
+        pane.setPannable(true);
+        pane.setPrefViewportWidth(viewWidth);
+        pane.setPrefViewportHeight(viewHeight);
+        pane.setHbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
+        pane.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
+        pane.addEventFilter(ScrollEvent.SCROLL, event -> {
+            zoom(Math.pow(1.1, event.getDeltaY() / 40));
+            event.consume();
+        });
+    }
+
+    public ScrollPane getNode() {
+        return pane;
+    }
+
+    public WritableImage getImage() {
+        return image;
+    }
+
+    public void zoom(double factor) {
+        double h = pane.getHvalue();
+        double v = pane.getVvalue();
+        zoom = Math.max(1, Math.min(MAX_ZOOM, zoom * factor));
+        view.setFitWidth(baseWidth * zoom);
+        view.setFitHeight(baseHeight * zoom);
+        pane.layout();
+        pane.setHvalue(h);
+        pane.setVvalue(v);
+    }
+
+    // Shows the city at the given iteration, only the cells of the two iterations involved change colour
+    public void show(int target) {
+        int previous = iteration;
+        iteration = target;
+        if (previous == target) {
+            return;
+        }
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1};
+        repaint(previous, bounds);
+        repaint(target, bounds);
+        if (bounds[2] >= 0) {
+            write(bounds[0], bounds[1], bounds[2], bounds[3]);
+        }
+    }
+
+    private void repaint(int iterationOfCells, int[] bounds) {
+        for (int index : log.changedAt(iterationOfCells)) {
+            int i = cells.column(index);
+            int j = cells.row(index);
+            pixels[j * width + i] = colour(index);
+            bounds[0] = Math.min(bounds[0], i);
+            bounds[1] = Math.min(bounds[1], j);
+            bounds[2] = Math.max(bounds[2], i);
+            bounds[3] = Math.max(bounds[3], j);
+        }
+    }
+
+    private int colour(int index) {
+        int newUrbanAt = cells.getNewUrbanAt(index);
+        if (newUrbanAt == iteration) {
+            return NEW_URBAN;
+        } else if (newUrbanAt < iteration) {
+            return URBAN;
+        } else if (!cells.isLand(index)) {
+            return WATER;
+        }
+        return LAND;
+    }
+
+    // Writes the pixels of [i0, i1] x [j0, j1] into the image
+    private void write(int i0, int j0, int i1, int j1) {
+        image.getPixelWriter().setPixels(i0, j0, i1 - i0 + 1, j1 - j0 + 1, PixelFormat.getIntArgbInstance(),
+                pixels, j0 * width + i0, width);
+    }
+
+    private static int argb(Color color) {
+        return (int) Math.round(color.getOpacity() * 255) << 24 | (int) Math.round(color.getRed() * 255) << 16
+                | (int) Math.round(color.getGreen() * 255) << 8 | (int) Math.round(color.getBlue() * 255);
+    }
+}
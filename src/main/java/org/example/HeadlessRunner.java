@@ -0,0 +1,178 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.function.IntFunction;
+
+/*
+Command line mode without JavaFX: java -jar GeoAut.jar --headless <shapefile directory> <parameters> <iterations> <seed> <output directory> [replicas]
+The parameters file is a .properties file with the names of the static settings of Simulation,
+e.g. cellSize=40 or distanceEngine=PLANAR, "-" keeps the defaults. The output directory gets
+urban.asc - ESRI ASCII grid with the iteration every cell became urban at (-1 - urban from the start, -9999 - never),
+summary.csv - number of urban cells and time of every iteration, history.gz - DeltaLog of the run.
+With replicas > 1 an ensemble is run instead (see Ensemble): frequency.asc - share of the replicas where the cell
+is urban, mean_new_urban_at.asc - mean iteration it became urban at over the replicas where it did.
+*/
+public class HeadlessRunner {
+    private static final int NODATA = -9999;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5 && args.length != 6) {
+            System.err.println("Usage: --headless <shapefile directory> <parameters.properties | -> <iterations> <seed> <output directory> [replicas]");
+            System.exit(2);
+        }
+        String path = args[0];
+        if (!args[1].equals("-")) {
+            applyParameters(Paths.get(args[1]));
+        }
+        int iterations = Integer.parseInt(args[2]);
+        Simulation.setSeed(Long.parseLong(args[3]));
+        Path output = Paths.get(args[4]);
+        int replicas = args.length == 6 ? Integer.parseInt(args[5]) : 1;
+        Files.createDirectories(output);
+
+        long start = System.nanoTime();
+        Simulation simulation = new Simulation(path);
+        if (simulation.getAdmission().getDecision() != Admission.Decision.ACCEPT) {
+            System.err.println("Running in low-memory mode. " + simulation.getAdmission());
+        }
+        CellGrid grid = simulation.getInitialCells();
+        if (replicas > 1) {
+            Ensemble ensemble = new Ensemble(simulation, grid);
+            ensemble.run(replicas, iterations);
+            writeAsciiGrid(grid, output.resolve("frequency.asc"),
+                    index -> String.format(Locale.ROOT, "%.4f", ensemble.getUrbanFrequency(index)));
+            writeAsciiGrid(grid, output.resolve("mean_new_urban_at.asc"), index -> {
+                double mean = ensemble.getMeanNewUrbanAt(index);
+                return Double.isNaN(mean) ? String.valueOf(NODATA) : String.format(Locale.ROOT, "%.3f", mean);
+            });
+            System.out.println("Seed " + simulation.getRandomSeed() + ", " + replicas + " replicas of " + iterations
+                    + " iterations, results in " + output);
+            closeMetrics(simulation);
+            System.exit(0);
+        }
+        DeltaLog log = new DeltaLog(grid, Simulation.getCellSize());
+        try (PrintWriter summary = new PrintWriter(Files.newBufferedWriter(output.resolve("summary.csv")))) {
+            summary.println("iteration,urban_cells,new_urban_cells,millis");
+            long urbanCells = urbanCells(grid);
+            summary.println(0 + "," + urbanCells + "," + urbanCells + "," + (System.nanoTime() - start) / 1000000);
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                long iterationStart = System.nanoTime();
+                simulation.doIteration(grid);
+                log.record(grid, simulation.getITERATION());
+                long newUrbanCells = urbanCells(grid);
+                summary.println(iteration + "," + newUrbanCells + "," + (newUrbanCells - urbanCells) + ","
+                        + (System.nanoTime() - iterationStart) / 1000000);
+                urbanCells = newUrbanCells;
+            }
+        }
+        log.save(output.resolve("history.gz"));
+        writeAsciiGrid(grid, output.resolve("urban.asc"),
+                index -> String.valueOf(grid.isUrban(index) ? grid.getNewUrbanAt(index) : NODATA));
+        System.out.println("Seed " + simulation.getRandomSeed() + ", " + iterations + " iterations, results in " + output);
+        closeMetrics(simulation);
+        System.exit(0);
+    }
+
+    private static void closeMetrics(Simulation simulation) {
+        if (simulation.getMetrics() != null) {
+            simulation.getMetrics().close();
+        }
+    }
+
+    // Sets every property through the static setter of Simulation with the same name
+    static void applyParameters(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name).trim();
+            String setterName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            Method setter = null;
+            for (Method method : Simulation.class.getMethods()) {
+                if (method.getName().equals(setterName) && method.getParameterCount() == 1
+                        && Modifier.isStatic(method.getModifiers())) {
+                    setter = method;
+                }
+            }
+            if (setter == null) {
+                throw new IllegalArgumentException("Unknown parameter: " + name);
+            }
+            try {
+                setter.invoke(null, parse(setter.getParameterTypes()[0], value));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot set " + name + " to " + value, e);
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object parse(Class<?> type, String value) {
+        if (type == int.class || type == Integer.class) {
+            return Integer.parseInt(value);
+        } else if (type == long.class || type == Long.class) {
+            return value.isEmpty() ? null : Long.parseLong(value);
+        } else if (type == double.class || type == Double.class) {
+            return Double.parseDouble(value);
+        } else if (type == boolean.class || type == Boolean.class) {
+            return Boolean.parseBoolean(value);
+        } else if (type.isEnum()) {
+            return Enum.valueOf((Class<? extends Enum>) type, value);
+        } else if (type == String.class) {
+            return value.isEmpty() ? null : value;
+        }
+        throw new IllegalArgumentException("Unsupported parameter type " + type);
+    }
+
+    private static long urbanCells(CellGrid grid) {
+        long count = 0;
+        for (long word : grid.urban) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Rows of the grid already go from north to south, as in the format
+    static void writeAsciiGrid(CellGrid grid, Path file, IntFunction<String> value) throws IOException {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        double dx = Math.abs(grid.getStepX());
+        double dy = Math.abs(grid.getStepY());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("ncols " + width);
+            out.println("nrows " + height);
+            out.println(String.format(Locale.ROOT, "xllcorner %.10f", grid.getCentroidX(0) - dx / 2));
+            out.println(String.format(Locale.ROOT, "yllcorner %.10f", grid.getCentroidY(height - 1) - dy / 2));
+            out.println(String.format(Locale.ROOT, "dx %.10f", dx));
+            out.println(String.format(Locale.ROOT, "dy %.10f", dy));
+            out.println("NODATA_value " + NODATA);
+            StringBuilder row = new StringBuilder();
+            for (int j = 0; j < height; j++) {
+                row.setLength(0);
+                for (int i = 0; i < width; i++) {
+                    int index = grid.index(i, j);
+                    if (i > 0) {
+                        row.append(' ');
+                    }
+                    row.append(value.apply(index));
+                }
+                out.println(row);
+            }
+        }
+        File prj = file.resolveSibling(file.getFileName().toString().replace(".asc", ".prj")).toFile();
+        try (PrintWriter out = new PrintWriter(prj)) {
+            out.println("GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563]],"
+                    + "PRIMEM[\"Greenwich\",0],UNIT[\"degree\",0.0174532925199433]]");
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.example;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Packed R-tree without node objects (STRTree.IndexEngine.HILBERT). The items are sorted by the Hilbert index
+of their envelope centres and grouped NODE_SIZE at a time, the groups are grouped again up to the root.
+Every entry (the items first, then the nodes level by level, the root last) is four doubles of boxes,
+minX, minY, maxX, maxY; the children of a node are the consecutive entries from children[node] on.
+Nearest neighbours are searched best first with a heap of primitive (distance, entry) pairs: an item comes in
+with the distance to its box and goes back with its exact distance, so only the items whose box is closer
+than the k-th result are measured. A point's box is its exact distance already.
+*/
+class HilbertRTree implements SpatialIndex {
+    private static final int NODE_SIZE = 16;
+    private static final int HILBERT_BITS = 15; // per axis, the index fits 30 bits
+    private static final ThreadLocal<Heap> HEAPS = ThreadLocal.withInitial(Heap::new);
+
+    private final List<Geometry> items;
+    private final FacetIndexCache facets;
+    private final Geometry[] sorted; // item of every leaf entry
+    private final double[] boxes;
+    private final int[] children; // per node entry, its first child
+    private final int[] levelEnds; // end (exclusive) of the entries of every level, leaves first
+    private final int leaves;
+    private final int root;
+
+    HilbertRTree(List<? extends Geometry> geometries, FacetIndexCache facets) {
+        items = Collections.unmodifiableList(new ArrayList<>(geometries));
+        this.facets = facets;
+        leaves = items.size();
+        List<Integer> ends = new ArrayList<>();
+        ends.add(leaves);
+        int count = leaves;
+        int total = leaves;
+        while (count > 1 || total == leaves && leaves > 0) {
+            count = (count + NODE_SIZE - 1) / NODE_SIZE;
+            total += count;
+            ends.add(total);
+        }
+        levelEnds = ends.stream().mapToInt(Integer::intValue).toArray();
+        root = total - 1;
+        sorted = new Geometry[leaves];
+        boxes = new double[4 * total];
+        children = new int[total];
+        if (leaves == 0) {
+            return;
+        }
+
+        Envelope extent = new Envelope();
+        for (Geometry item : items) {
+            extent.expandToInclude(item.getEnvelopeInternal());
+        }
+        double scaleX = extent.getWidth() > 0 ? ((1 << HILBERT_BITS) - 1) / extent.getWidth() : 0;
+        double scaleY = extent.getHeight() > 0 ? ((1 << HILBERT_BITS) - 1) / extent.getHeight() : 0;
+        //Hilbert index in the high bits, the item in the low ones: sorting the keys keeps equal indices in item order
+        long[] keys = new long[leaves];
+        for (int i = 0; i < leaves; i++) {
+            Envelope envelope = items.get(i).getEnvelopeInternal();
+            int x = (int) (((envelope.getMinX() + envelope.getMaxX()) / 2 - extent.getMinX()) * scaleX);
+            int y = (int) (((envelope.getMinY() + envelope.getMaxY()) / 2 - extent.getMinY()) * scaleY);
+            keys[i] = (long) hilbert(x, y) << 32 | i;
+        }
+        Arrays.sort(keys);
+        for (int entry = 0; entry < leaves; entry++) {
+            Geometry item = items.get((int) keys[entry]);
+            sorted[entry] = item;
+            Envelope envelope = item.getEnvelopeInternal();
+            boxes[4 * entry] = envelope.getMinX();
+            boxes[4 * entry + 1] = envelope.getMinY();
+            boxes[4 * entry + 2] = envelope.getMaxX();
+            boxes[4 * entry + 3] = envelope.getMaxY();
+        }
+        for (int level = 1, start = 0; level < levelEnds.length; start = levelEnds[level - 1], level++) {
+            for (int node = levelEnds[level - 1], child = start; child < levelEnds[level - 1]; node++, child += NODE_SIZE) {
+                children[node] = child;
+                int end = Math.min(child + NODE_SIZE, levelEnds[level - 1]);
+                boxes[4 * node] = Double.POSITIVE_INFINITY;
+                boxes[4 * node + 1] = Double.POSITIVE_INFINITY;
+                boxes[4 * node + 2] = Double.NEGATIVE_INFINITY;
+                boxes[4 * node + 3] = Double.NEGATIVE_INFINITY;
+                for (int c = child; c < end; c++) {
+                    boxes[4 * node] = Math.min(boxes[4 * node], boxes[4 * c]);
+                    boxes[4 * node + 1] = Math.min(boxes[4 * node + 1], boxes[4 * c + 1]);
+                    boxes[4 * node + 2] = Math.max(boxes[4 * node + 2], boxes[4 * c + 2]);
+                    boxes[4 * node + 3] = Math.max(boxes[4 * node + 3], boxes[4 * c + 3]);
+                }
+            }
+        }
+    }
+
+    // Position of (x, y) along the Hilbert curve filling [0, 2^HILBERT_BITS)^2
+    private static int hilbert(int x, int y) {
+        int d = 0;
+        for (int s = 1 << (HILBERT_BITS - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = (1 << HILBERT_BITS) - 1 - x;
+                    y = (1 << HILBERT_BITS) - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    // End (exclusive) of the children of a node entry
+    private int childrenEnd(int node) {
+        int level = 1;
+        while (node >= levelEnds[level]) {
+            level++;
+        }
+        return Math.min(children[node] + NODE_SIZE, levelEnds[level - 1]);
+    }
+
+    private double boxDistance(int entry, double x, double y) {
+        double dx = Math.max(0, Math.max(boxes[4 * entry] - x, x - boxes[4 * entry + 2]));
+        double dy = Math.max(0, Math.max(boxes[4 * entry + 1] - y, y - boxes[4 * entry + 3]));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private boolean isPoint(int entry) {
+        return boxes[4 * entry] == boxes[4 * entry + 2] && boxes[4 * entry + 1] == boxes[4 * entry + 3];
+    }
+
+    @Override
+    public Geometry nearest(Point point) {
+        Heap heap = HEAPS.get();
+        return search(point, 1, heap.one) == 0 ? null : heap.one[0];
+    }
+
+    @Override
+    public Geometry[] nearest(Point point, int k) {
+        Geometry[] result = new Geometry[k];
+        search(point, k, result);
+        return result;
+    }
+
+    // Fills result with up to k nearest items, nearest first, and returns their number
+    private int search(Point point, int k, Geometry[] result) {
+        if (leaves == 0 || k <= 0) {
+            return 0;
+        }
+        double x = point.getX();
+        double y = point.getY();
+        Heap heap = HEAPS.get();
+        heap.size = 0;
+        heap.push(boxDistance(root, x, y), root);
+        int found = 0;
+        while (heap.size > 0 && found < k) {
+            int entry = heap.pop();
+            if (entry < 0) {
+                //an exactly measured item
+                result[found++] = sorted[-entry - 1];
+            } else if (entry < leaves) {
+                if (isPoint(entry)) {
+                    result[found++] = sorted[entry];
+                } else {
+                    heap.push(facets.distance(sorted[entry], point), -entry - 1);
+                }
+            } else {
+                for (int child = children[entry], end = childrenEnd(entry); child < end; child++) {
+                    heap.push(boxDistance(child, x, y), child);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<Geometry> query(Envelope envelope) {
+        List<Geometry> result = new ArrayList<>();
+        if (leaves == 0) {
+            return result;
+        }
+        Heap heap = HEAPS.get();
+        int[] stack = heap.stack;
+        int size = 0;
+        stack[size++] = root;
+        while (size > 0) {
+            int entry = stack[--size];
+            if (boxes[4 * entry] > envelope.getMaxX() || boxes[4 * entry + 2] < envelope.getMinX()
+                    || boxes[4 * entry + 1] > envelope.getMaxY() || boxes[4 * entry + 3] < envelope.getMinY()) {
+                continue;
+            }
+            if (entry < leaves) {
+                result.add(sorted[entry]);
+                continue;
+            }
+            int end = childrenEnd(entry);
+            if (stack.length < size + NODE_SIZE) {
+                stack = heap.stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            for (int child = children[entry]; child < end; child++) {
+                stack[size++] = child;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Geometry> items() {
+        return items;
+    }
+
+    @Override
+    public Envelope getBounds() {
+        if (leaves == 0) {
+            return null;
+        }
+        return new Envelope(boxes[4 * root], boxes[4 * root + 2], boxes[4 * root + 1], boxes[4 * root + 3]);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return leaves == 0;
+    }
+
+    // Binary min-heap of (distance, entry) and the query stack, one per thread
+    private static class Heap {
+        double[] distances = new double[64];
+        int[] entries = new int[64];
+        int size;
+        int[] stack = new int[64];
+        final Geometry[] one = new Geometry[1];
+
+        void push(double distance, int entry) {
+            if (size == distances.length) {
+                distances = Arrays.copyOf(distances, 2 * size);
+                entries = Arrays.copyOf(entries, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                entries[i] = entries[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            entries[i] = entry;
+        }
+
+        int pop() {
+            int top = entries[0];
+            double distance = distances[--size];
+            int entry = entries[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                distances[i] = distances[child];
+                entries[i] = entries[child];
+                i = child;
+            }
+            distances[i] = distance;
+            entries[i] = entry;
+            return top;
+        }
+    }
+}
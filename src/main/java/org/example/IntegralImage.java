@@ -0,0 +1,94 @@
+package org.example;
+
+/*
+Summed-area table of a layer of a CellGrid, any rectangular window count is then four lookups.
+The layer is a packed bit set or a count per cell, the counts may come with a weight per cell (e.g. summed areas)
+whose window sums are kept in a second table.
+*/
+public class IntegralImage {
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final int[] sums; // sums[(i + 1) * stride + j + 1] = number of set cells in [0, i] x [0, j]
+    private double[] weights; // same layout as sums, null until built with weights
+
+    public IntegralImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.stride = height + 1;
+        this.sums = new int[(width + 1) * stride];
+    }
+
+    public void build(long[] bits) {
+        for (int i = 0; i < width; i++) {
+            int rowSum = 0;
+            int offset = (i + 1) * stride + 1;
+            int cell = i * height;
+            for (int j = 0; j < height; j++) {
+                if (CellGrid.get(bits, cell + j)) {
+                    rowSum++;
+                }
+                sums[offset + j] = sums[offset + j - stride] + rowSum;
+            }
+        }
+    }
+
+    // Counts per cell, indexed as in CellGrid
+    public void build(int[] counts) {
+        build(counts, null);
+    }
+
+    // Counts and weights per cell, indexed as in CellGrid; weight() sums the weights of a window
+    public void build(int[] counts, double[] cellWeights) {
+        if (cellWeights != null && weights == null) {
+            weights = new double[sums.length];
+        }
+        for (int i = 0; i < width; i++) {
+            int rowSum = 0;
+            double rowWeight = 0;
+            int offset = (i + 1) * stride + 1;
+            int cell = i * height;
+            for (int j = 0; j < height; j++) {
+                rowSum += counts[cell + j];
+                sums[offset + j] = sums[offset + j - stride] + rowSum;
+                if (cellWeights != null) {
+                    rowWeight += cellWeights[cell + j];
+                    weights[offset + j] = weights[offset + j - stride] + rowWeight;
+                }
+            }
+        }
+    }
+
+    // Number of set cells in [i0, i1] x [j0, j1], the window is clipped to the grid
+    public int count(int i0, int j0, int i1, int j1) {
+        i0 = Math.max(i0, 0);
+        j0 = Math.max(j0, 0);
+        i1 = Math.min(i1, width - 1);
+        j1 = Math.min(j1, height - 1);
+        if (i0 > i1 || j0 > j1) {
+            return 0;
+        }
+        return sums[(i1 + 1) * stride + j1 + 1] - sums[i0 * stride + j1 + 1]
+                - sums[(i1 + 1) * stride + j0] + sums[i0 * stride + j0];
+    }
+
+    // Sum of the weights of the cells in [i0, i1] x [j0, j1], clipped as count
+    public double weight(int i0, int j0, int i1, int j1) {
+        i0 = Math.max(i0, 0);
+        j0 = Math.max(j0, 0);
+        i1 = Math.min(i1, width - 1);
+        j1 = Math.min(j1, height - 1);
+        if (i0 > i1 || j0 > j1) {
+            return 0;
+        }
+        return weights[(i1 + 1) * stride + j1 + 1] - weights[i0 * stride + j1 + 1]
+                - weights[(i1 + 1) * stride + j0] + weights[i0 * stride + j0];
+    }
+
+    // Number of cells of the window [i0, i1] x [j0, j1] that lie inside the grid
+    public int area(int i0, int j0, int i1, int j1) {
+        int w = Math.min(i1, width - 1) - Math.max(i0, 0) + 1;
+        int h = Math.min(j1, height - 1) - Math.max(j0, 0) + 1;
+        return w > 0 && h > 0 ? w * h : 0;
+    }
+}
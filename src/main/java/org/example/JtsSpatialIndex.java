@@ -0,0 +1,73 @@
+package org.example;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.ItemDistance;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// SpatialIndex on the JTS STRtree (STRTree.IndexEngine.STR_TREE)
+class JtsSpatialIndex implements SpatialIndex {
+    private final STRtree tree = new STRtree();
+    private final List<Geometry> items;
+    private final ItemDistance distance;
+
+    JtsSpatialIndex(List<? extends Geometry> geometries, FacetIndexCache facets) {
+        items = Collections.unmodifiableList(new ArrayList<>(geometries));
+        distance = (item1, item2) -> facets.distance((Geometry) item1.getItem(), (Geometry) item2.getItem());
+        for (Geometry item : items) {
+            tree.insert(item.getEnvelopeInternal(), item);
+        }
+        // STRtree builds itself lazily on the first query; build it now so concurrent queries are plain reads
+        tree.build();
+    }
+
+    @Override
+    public Geometry nearest(Point point) {
+        if (items.isEmpty()) {
+            return null;
+        }
+        return (Geometry) tree.nearestNeighbour(point.getEnvelopeInternal(), point, distance);
+    }
+
+    @Override
+    public Geometry[] nearest(Point point, int k) {
+        Geometry[] result = new Geometry[k];
+        if (items.isEmpty() || k <= 0) {
+            return result;
+        }
+        Object[] found = tree.nearestNeighbour(point.getEnvelopeInternal(), point, distance, k);
+        for (int i = 0; i < found.length; i++) {
+            result[i] = (Geometry) found[i];
+        }
+        return result;
+    }
+
+    @Override
+    public List<Geometry> query(Envelope envelope) {
+        List<Geometry> result = new ArrayList<>();
+        for (Object item : tree.query(envelope)) {
+            result.add((Geometry) item);
+        }
+        return result;
+    }
+
+    @Override
+    public List<Geometry> items() {
+        return items;
+    }
+
+    @Override
+    public Envelope getBounds() {
+        return items.isEmpty() ? null : new Envelope((Envelope) tree.getRoot().getBounds());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+}
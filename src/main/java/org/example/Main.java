@@ -13,7 +13,16 @@ import org.locationtech.jts.geom.Point;
 
 public class Main{
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        //--headless runs without JavaFX, nothing of the toolkit is loaded on that path
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessRunner.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--calibrate")) {
+            Calibrator.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Application.launch(CityGrowthApplication.class);
     }
 }
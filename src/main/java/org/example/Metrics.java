@@ -0,0 +1,314 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Instrumentation of a Simulation, collected only with Simulation.metricsEnabled. Otherwise the simulation keeps
+no Metrics and every probe is a null check.
+Per phase: nanoseconds and visited cells (DISTANCES includes the water mask), besides that the k-NN queries
+of the spatial index and the developed segments.
+Phases measured inside parallel loops (DISTANCES and INIT_URBAN per column, SORTING and GROWTH per tile
+of the tiled iteration) add up the time of all the threads.
+The same numbers go to JFR (events org.example.Phase and org.example.Iteration, recorded with -XX:StartFlightRecording),
+to the MXBean org.example:type=Metrics of the latest simulation and, with Simulation.metricsFile,
+to a line per iteration of a CSV (.csv) or JSON lines (any other extension) file. Iteration 0 is the initial grid.
+Only the latest Metrics is live: a new one closes the previous one (its file and MXBean) before opening its own file,
+which may be the same one.
+*/
+public class Metrics implements MetricsMXBean, Closeable {
+    public enum Phase {
+        SPATIAL_INDEX,
+        DISTANCES,
+        INIT_URBAN,
+        PROBABILITY,
+        SEGMENTATION,
+        SORTING,
+        GROWTH
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final String OBJECT_NAME = "org.example:type=Metrics";
+
+    private final LongAdder[] nanos = new LongAdder[PHASES.length];
+    private final LongAdder[] cells = new LongAdder[PHASES.length];
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder segments = new LongAdder();
+    //totals at the end of the previous iteration, the sink gets the differences
+    private final long[] lastNanos = new long[PHASES.length];
+    private final long[] lastCells = new long[PHASES.length];
+    private long lastQueries;
+    private long lastSegments;
+    private long lastIterationNanos;
+    private volatile int iterations;
+    private final PrintWriter sink;
+    private final boolean json;
+    private boolean closed;
+    private static Metrics latest; // guarded by Metrics.class
+
+    public Metrics(String file) throws IOException {
+        for (int p = 0; p < PHASES.length; p++) {
+            nanos[p] = new LongAdder();
+            cells[p] = new LongAdder();
+        }
+        json = file != null && !file.toLowerCase(Locale.ROOT).endsWith(".csv");
+        synchronized (Metrics.class) {
+            if (latest != null) {
+                latest.close();
+            }
+            sink = file == null ? null : new PrintWriter(Files.newBufferedWriter(Paths.get(file)));
+            latest = this;
+        }
+        if (sink != null && !json) {
+            StringBuilder header = new StringBuilder("iteration,urban_cells,millis");
+            for (Phase phase : PHASES) {
+                header.append(',').append(phase.name().toLowerCase(Locale.ROOT)).append("_millis");
+            }
+            for (Phase phase : PHASES) {
+                header.append(',').append(phase.name().toLowerCase(Locale.ROOT)).append("_cells");
+            }
+            sink.println(header.append(",nearest_queries,segments"));
+            sink.flush();
+        }
+        register();
+    }
+
+    // The MXBean shows the latest simulation, the one before it is unregistered
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (Metrics.class) {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                if (latest == this) {
+                    server.registerMBean(this, name);
+                }
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Closes the file and unregisters the MXBean if it is this one's, later iterations are no longer written
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (sink != null) {
+                sink.close();
+            }
+        }
+        synchronized (Metrics.class) {
+            if (latest != this) {
+                return;
+            }
+            latest = null;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void add(Phase phase, int iteration, long phaseNanos, long visitedCells) {
+        nanos[phase.ordinal()].add(phaseNanos);
+        cells[phase.ordinal()].add(visitedCells);
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.iteration = iteration;
+            event.nanos = phaseNanos;
+            event.cells = visitedCells;
+            event.commit();
+        }
+    }
+
+    // Phase that started at start (System.nanoTime) and ends now
+    public void end(Phase phase, int iteration, long start, long visitedCells) {
+        add(phase, iteration, System.nanoTime() - start, visitedCells);
+    }
+
+    public void addQueries(long count) {
+        queries.add(count);
+    }
+
+    public void addSegments(long count) {
+        segments.add(count);
+    }
+
+    // Called by the simulation once the iteration (0 - the initial grid) is over
+    public synchronized void endIteration(int iteration, CellGrid grid) {
+        long urbanCells = 0;
+        for (long word : grid.urban) {
+            urbanCells += Long.bitCount(word);
+        }
+        long[] phaseNanos = new long[PHASES.length];
+        long[] phaseCells = new long[PHASES.length];
+        long total = 0;
+        for (int p = 0; p < PHASES.length; p++) {
+            long sum = nanos[p].sum();
+            phaseNanos[p] = sum - lastNanos[p];
+            lastNanos[p] = sum;
+            sum = cells[p].sum();
+            phaseCells[p] = sum - lastCells[p];
+            lastCells[p] = sum;
+            total += phaseNanos[p];
+        }
+        long iterationQueries = queries.sum() - lastQueries;
+        lastQueries += iterationQueries;
+        long iterationSegments = segments.sum() - lastSegments;
+        lastSegments += iterationSegments;
+        lastIterationNanos = total;
+        iterations = iteration;
+
+        IterationEvent event = new IterationEvent();
+        if (event.isEnabled()) {
+            event.iteration = iteration;
+            event.urbanCells = urbanCells;
+            event.nanos = total;
+            event.nearestQueries = iterationQueries;
+            event.segments = iterationSegments;
+            event.commit();
+        }
+        if (sink == null || closed) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        if (json) {
+            line.append("{\"iteration\":").append(iteration).append(",\"urbanCells\":").append(urbanCells)
+                    .append(",\"millis\":").append(millis(total)).append(",\"phases\":{");
+            for (int p = 0; p < PHASES.length; p++) {
+                line.append(p == 0 ? "" : ",").append('"').append(PHASES[p].name()).append("\":{\"millis\":")
+                        .append(millis(phaseNanos[p])).append(",\"cells\":").append(phaseCells[p]).append('}');
+            }
+            line.append("},\"nearestQueries\":").append(iterationQueries)
+                    .append(",\"segments\":").append(iterationSegments).append('}');
+        } else {
+            line.append(iteration).append(',').append(urbanCells).append(',').append(millis(total));
+            for (long value : phaseNanos) {
+                line.append(',').append(millis(value));
+            }
+            for (long value : phaseCells) {
+                line.append(',').append(value);
+            }
+            line.append(',').append(iterationQueries).append(',').append(iterationSegments);
+        }
+        sink.println(line);
+        sink.flush();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    @Override
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            result.put(phase.name(), nanos[phase.ordinal()].sum() / 1e6);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCells() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            result.put(phase.name(), cells[phase.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getNearestQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getSegments() {
+        return segments.sum();
+    }
+
+    @Override
+    public double getLastIterationMillis() {
+        return lastIterationNanos / 1e6;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int p = 0; p < PHASES.length; p++) {
+            nanos[p].reset();
+            cells[p].reset();
+            lastNanos[p] = 0;
+            lastCells[p] = 0;
+        }
+        queries.reset();
+        segments.reset();
+        lastQueries = 0;
+        lastSegments = 0;
+    }
+
+    @Name("org.example.Phase")
+    @Label("Simulation phase")
+    @Category("Urban-Modelling")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Iteration")
+        int iteration;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+        @Label("Cells")
+        long cells;
+    }
+
+    @Name("org.example.Iteration")
+    @Label("Simulation iteration")
+    @Category("Urban-Modelling")
+    static class IterationEvent extends Event {
+        @Label("Iteration")
+        int iteration;
+        @Label("Urban cells")
+        long urbanCells;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+        @Label("Nearest neighbour queries")
+        long nearestQueries;
+        @Label("Segments")
+        long segments;
+    }
+}
@@ -0,0 +1,20 @@
+package org.example;
+
+import java.util.Map;
+
+// Totals of the running simulation over JMX, org.example:type=Metrics (see Metrics)
+public interface MetricsMXBean {
+    int getIterations();
+
+    Map<String, Double> getPhaseMillis();
+
+    Map<String, Long> getPhaseCells();
+
+    long getNearestQueries();
+
+    long getSegments();
+
+    double getLastIterationMillis();
+
+    void reset();
+}
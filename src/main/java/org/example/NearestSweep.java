@@ -0,0 +1,53 @@
+package org.example;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.util.Arrays;
+
+/*
+Nearest feature distances of a run of nearby points, e.g. the centroids of a grid column from top to bottom
+(Simulation.DistanceLayerEngine.SWEEP). Per layer the nearest feature of the previous point is carried forward
+with a lower bound on the distance to every other feature of the layer, the second nearest one when it was
+queried. A step of s moves every feature at most s closer, so the bound drops by s per point; as long as the
+carried feature stays closer than the bound it is still the nearest one and the layer is not queried.
+Otherwise the two nearest features are queried again. Distances to the features are Geometry.distance, as in
+the spatial index, so the nearest features are the ones STRTree.getNearestDistance finds, up to ties.
+Not thread-safe, one sweep per run of points.
+*/
+public class NearestSweep {
+    private final STRTree strTree;
+    private final Geometry[] nearest = new Geometry[CellGrid.PARAMETERS];
+    private final double[] othersBound = new double[CellGrid.PARAMETERS];
+    private Point previous;
+
+    public NearestSweep(STRTree strTree) {
+        this.strTree = strTree;
+        Arrays.fill(othersBound, Double.NEGATIVE_INFINITY);
+    }
+
+    // Fills distances with getNearestDistance(point, layer) of every layer, NaN for empty layers
+    public void nearestDistances(Point point, double[] distances) {
+        double step = previous == null ? Double.POSITIVE_INFINITY : previous.distance(point);
+        previous = point;
+        int queries = 0;
+        for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+            SpatialIndex index = strTree.getIndexes()[layer];
+            if (index.isEmpty()) {
+                distances[layer] = Double.NaN;
+                continue;
+            }
+            othersBound[layer] -= step;
+            if (nearest[layer] == null || !(strTree.getFacets().distance(nearest[layer], point) < othersBound[layer])) {
+                Geometry[] two = index.nearest(point, 2);
+                nearest[layer] = two[0];
+                othersBound[layer] = two[1] == null ? Double.POSITIVE_INFINITY : strTree.getFacets().distance(two[1], point);
+                queries++;
+            }
+            distances[layer] = strTree.dist(point, nearest[layer]);
+        }
+        if (strTree.metrics != null) {
+            strTree.metrics.addQueries(queries);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.example;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.Double.min;
+
+/*
+UrbanizationEvaluator.initUrban for the whole grid at once. The scoring inputs are rasterized in bulk passes
+and every "within distance" test of initUrban becomes a window sum over a summed-area table, a few lookups per cell:
+- points are bucketed by cell, the buckets around a cell give the number of points within cellSize of its centroid
+  (local metric distance), there have to be thresholdNumberOfPoints of them;
+- buildings are counted by the cell of their centroid with their area capped at thresholdForAreaForOneBuilding,
+  the SCANNING_RADIUS window gives their number and their area, scaled down to the 7 buildings initUrban looks at;
+- landuse classes are filled by their interiors (see WaterMask) and marked at their vertices, "contains" is the
+  filled bit of the cell itself and "within SCANNING_RADIUS" a non-empty window;
+- footways are burnt into the cells they pass through.
+The SCANNING_RADIUS windows are squares of the disc's area rather than discs, and a feature counts in the cell
+it falls into, so the result approximates the exact evaluator, mostly along the edges of urban areas.
+*/
+public class RasterUrbanizationEvaluator {
+    private static final int NEAREST_BUILDINGS = 7; // buildings initUrban scores
+
+    private final UrbanizationEvaluator evaluator;
+    private final CellGrid grid;
+    private final int width;
+    private final int height;
+    private final double sx; // metres between neighbouring columns
+    private final double sy; // metres between neighbouring rows
+    private final double metresPerDegreeLon;
+    private final double metresPerDegreeLat;
+
+    public RasterUrbanizationEvaluator(UrbanizationEvaluator evaluator, CellGrid grid) {
+        this.evaluator = evaluator;
+        this.grid = grid;
+        width = grid.getWidth();
+        height = grid.getHeight();
+        double midLat = (grid.getCentroidY(0) + grid.getCentroidY(height - 1)) / 2;
+        metresPerDegreeLon = LocalProjection.metresPerDegreeLon(midLat);
+        metresPerDegreeLat = LocalProjection.metresPerDegreeLat(midLat);
+        sx = Math.abs(grid.getStepX()) * metresPerDegreeLon;
+        sy = Math.abs(grid.getStepY()) * metresPerDegreeLat;
+    }
+
+    // Packed bits of the cells that start as urban
+    public long[] evaluate() {
+        STRTree strTree = evaluator.strTree;
+        double cap = evaluator.thresholdForAreaForOneBuilding / (evaluator.FACTOR * evaluator.FACTOR);
+
+        //points bucketed by cell: the coordinates of the points of cell index are at [first[index], first[index + 1])
+        List<Geometry> pointItems = strTree.getPoints().items();
+        int[] first = new int[grid.getSize() + 1];
+        for (Geometry point : pointItems) {
+            int index = cell(point.getCoordinate().x, point.getCoordinate().y);
+            if (index >= 0) {
+                first[index + 1]++;
+            }
+        }
+        for (int index = 0; index < grid.getSize(); index++) {
+            first[index + 1] += first[index];
+        }
+        double[] pointX = new double[first[grid.getSize()]];
+        double[] pointY = new double[pointX.length];
+        int[] next = Arrays.copyOf(first, grid.getSize());
+        for (Geometry point : pointItems) {
+            int index = cell(point.getCoordinate().x, point.getCoordinate().y);
+            if (index >= 0) {
+                pointX[next[index]] = point.getCoordinate().x;
+                pointY[next[index]++] = point.getCoordinate().y;
+            }
+        }
+        int[] buildingCounts = new int[grid.getSize()];
+        double[] area = new double[grid.getSize()];
+        for (Geometry building : strTree.getBuildings().items()) {
+            Coordinate centroid = building.getCentroid().getCoordinate();
+            int index = cell(centroid.x, centroid.y);
+            if (index >= 0) {
+                buildingCounts[index]++;
+                area[index] += min(cap, building.getArea());
+            }
+        }
+        IntegralImage buildings = new IntegralImage(width, height);
+        buildings.build(buildingCounts, area);
+        long[][] landuse = new long[3][];
+        IntegralImage[] landuseNear = new IntegralImage[3];
+        for (int k = 0; k < 3; k++) {
+            List<Geometry> polygons = strTree.getLanduse()[k].items();
+            landuse[k] = WaterMask.rasterize(grid, polygons);
+            int[] near = new int[grid.getSize()];
+            for (int index = 0; index < grid.getSize(); index++) {
+                if (CellGrid.get(landuse[k], index)) {
+                    near[index]++;
+                }
+            }
+            //polygons smaller than a cell may cover no centroid
+            for (Geometry polygon : polygons) {
+                for (Coordinate vertex : polygon.getCoordinates()) {
+                    add(near, vertex.x, vertex.y);
+                }
+            }
+            landuseNear[k] = new IntegralImage(width, height);
+            landuseNear[k].build(near);
+        }
+        int[] footwayCells = new int[grid.getSize()];
+        for (Geometry footway : strTree.getFootways().items()) {
+            burn(footwayCells, footway);
+        }
+        IntegralImage footways = new IntegralImage(width, height);
+        footways.build(footwayCells);
+
+        //a point in the k-th column from the cell is at least (k - 1/2) * sx away
+        int pointsI = (int) Math.floor(evaluator.cellSize / sx + 0.5);
+        int pointsJ = (int) Math.floor(evaluator.cellSize / sy + 0.5);
+        int scanI = cells(evaluator.SCANNING_RADIUS, sx);
+        int scanJ = cells(evaluator.SCANNING_RADIUS, sy);
+        double big = evaluator.bigBuildingsArea / (evaluator.FACTOR * evaluator.FACTOR);
+        double medium = evaluator.mediumBuildingsArea / (evaluator.FACTOR * evaluator.FACTOR);
+        int maxScore = evaluator.maxScoreForLanduse;
+        long[] urban = new long[CellGrid.words(grid.getSize())];
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                int index = grid.index(i, j);
+                int score = 0;
+                if (pointsWithin(first, pointX, pointY, i, j, pointsI, pointsJ) >= evaluator.thresholdNumberOfPoints) {
+                    score += evaluator.scoreForPoints;
+                }
+
+                int count = window(buildings, i, j, scanI, scanJ);
+                double S = count == 0 ? 0 : buildings.weight(i - scanI, j - scanJ, i + scanI, j + scanJ)
+                        * Math.min(count, NEAREST_BUILDINGS) / count;
+                if (count >= NEAREST_BUILDINGS) {
+                    score += 2;
+                }
+                if (S >= big) {
+                    score += evaluator.scoreForBigBuildingsArea;
+                } else if (S >= medium) {
+                    score += evaluator.scoreForMediumBuildingsArea;
+                }
+
+                if (CellGrid.get(landuse[0], index)) {
+                    score += maxScore;
+                } else if (CellGrid.get(landuse[1], index) || window(landuseNear[0], i, j, scanI, scanJ) > 0) {
+                    score += maxScore - 1;
+                } else if (CellGrid.get(landuse[2], index)) {
+                    score += Math.max(maxScore - 2, 0);
+                } else if (window(landuseNear[2], i, j, scanI, scanJ) > 0 || window(landuseNear[1], i, j, scanI, scanJ) > 0) {
+                    score += Math.max(maxScore - 3, 0);
+                }
+
+                if (window(footways, i, j, scanI, scanJ) > 0) {
+                    score += evaluator.scoreForFootway;
+                }
+                if (score >= evaluator.thresholdScore) {
+                    CellGrid.set(urban, index, true);
+                }
+            }
+        }
+        return urban;
+    }
+
+    // Radius in metres as the half-width of a window in cells, the square of 2 * cells + 1 has the area of the disc
+    private static int cells(double metres, double cellMetres) {
+        return (int) Math.max(0, Math.floor((metres * Math.sqrt(Math.PI) / cellMetres - 1) / 2 + 0.5));
+    }
+
+    // Number of points within cellSize of the centroid of (i, j), the limit is thresholdNumberOfPoints
+    private int pointsWithin(int[] first, double[] pointX, double[] pointY, int i, int j, int ri, int rj) {
+        double x = grid.centroidX[i];
+        double y = grid.centroidY[j];
+        double r2 = evaluator.cellSize * evaluator.cellSize;
+        int count = 0;
+        for (int a = Math.max(0, i - ri); a <= Math.min(width - 1, i + ri); a++) {
+            for (int b = Math.max(0, j - rj); b <= Math.min(height - 1, j + rj); b++) {
+                int index = grid.index(a, b);
+                for (int p = first[index]; p < first[index + 1]; p++) {
+                    double dx = (pointX[p] - x) * metresPerDegreeLon;
+                    double dy = (pointY[p] - y) * metresPerDegreeLat;
+                    if (dx * dx + dy * dy <= r2 && ++count >= evaluator.thresholdNumberOfPoints) {
+                        return count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Cell the coordinate falls into, -1 outside the grid
+    private int cell(double x, double y) {
+        int i = grid.columnOf(x);
+        int j = grid.rowOf(y);
+        if (i < 0 || i >= width || j < 0 || j >= height) {
+            return -1;
+        }
+        return grid.index(i, j);
+    }
+
+    private void add(int[] counts, double x, double y) {
+        int index = cell(x, y);
+        if (index >= 0) {
+            counts[index]++;
+        }
+    }
+
+    // Marks every cell the lines pass through, sampling every segment at least twice per cell
+    private void burn(int[] counts, Geometry feature) {
+        for (Object line : LinearComponentExtracter.getLines(feature)) {
+            Coordinate[] coordinates = ((LineString) line).getCoordinates();
+            for (int k = 0; k + 1 < coordinates.length; k++) {
+                Coordinate a = coordinates[k];
+                Coordinate b = coordinates[k + 1];
+                int steps = (int) Math.min(1 << 20, Math.ceil(2 * Math.max(Math.abs(b.x - a.x) / Math.abs(grid.getStepX()),
+                        Math.abs(b.y - a.y) / Math.abs(grid.getStepY()))));
+                for (int s = 0; s <= steps; s++) {
+                    double t = steps == 0 ? 0 : (double) s / steps;
+                    add(counts, a.x + (b.x - a.x) * t, a.y + (b.y - a.y) * t);
+                }
+            }
+            if (coordinates.length == 1) {
+                add(counts, coordinates[0].x, coordinates[0].y);
+            }
+        }
+    }
+
+    // Count of the window of half-widths ri, rj around (i, j), clipped to the grid
+    private static int window(IntegralImage image, int i, int j, int ri, int rj) {
+        return image.count(i - ri, j - rj, i + ri, j + rj);
+    }
+}
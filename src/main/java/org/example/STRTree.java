@@ -4,93 +4,134 @@ import lombok.Data;
 import net.sf.geographiclib.Geodesic;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.feature.FeatureIterator;
 import org.locationtech.jts.geom.*;
-import org.locationtech.jts.index.strtree.ItemBoundable;
-import org.locationtech.jts.index.strtree.ItemDistance;
-import org.locationtech.jts.index.strtree.STRtree;
-import org.locationtech.jts.operation.distance.DistanceOp;
 import org.opengis.feature.simple.SimpleFeature;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 @Data
 public class STRTree {
-    private STRtree[] indexes;
-    private STRtree rivers;
-    private STRtree points;
-    private STRtree buildings;
-    private STRtree waters;
-    private STRtree footways;
-    private STRtree[] landuse = new STRtree[4];// 0 - commercial, 1 - residential,
+    private SpatialIndex[] indexes;
+    private SpatialIndex rivers;
+    private SpatialIndex points;
+    private SpatialIndex buildings;
+    private SpatialIndex waters;
+    private SpatialIndex footways;
+    private SpatialIndex[] landuse = new SpatialIndex[4];// 0 - commercial, 1 - residential,
     // industrial, 2 - other urban, 3 - else
-    private Map<Point, Double>[] nearestDistances;
+    private final DistanceEngine distanceEngine;
+    private final IndexEngine indexEngine;
+    private LocalProjection projection;
+    private Map<Geometry, Geometry> projected; // indexed geometry -> its copy in projected metres
+    private double projectionError;
+    Metrics metrics; // counts the queries if set
+    private final FacetIndexCache facets = new FacetIndexCache(); // of every indexed geometry and projected copy
+
+    /*
+    GEODESIC - nearest points in lon/lat, then the WGS84 geodesic between them, as the model has always measured it
+    (with the axes given in the order the regression constants were fitted with, see dist).
+    PLANAR - every indexed geometry is projected once at load time (see LocalProjection) and distances
+    are measured in metres on the projected copies, radius checks first reject by envelope.
+    */
+    public enum DistanceEngine {
+        GEODESIC,
+        PLANAR
+    }
+
+    /*
+    HILBERT - HilbertRTree, a packed R-tree in primitive arrays.
+    STR_TREE - the JTS STRtree, the default.
+    */
+    public enum IndexEngine {
+        HILBERT,
+        STR_TREE
+    }
 
     private final String[] urbanLandUseTypes = {"residential", "commercial", "industrial",
             "retail", "port", "landfill", "cemetery", "grave_yard", "park", "recreation_groun",
             "playground"};
 
     public STRTree(SimpleFeatureCollection[] shapefilesFeatureCollections, int minSpeedForExpressway, double defaultRiverWidth,
-                   double FACTOR) {
+                   double FACTOR, DistanceEngine distanceEngine) {
+        this(shapefilesFeatureCollections, minSpeedForExpressway, defaultRiverWidth, FACTOR, distanceEngine, IndexEngine.STR_TREE, null);
+    }
+
+    /*
+    Every shapefile is read by its own task into plain item lists, rivers are buffered in parallel, then every index
+    is built from its list at once by its own task. pool null - all on this thread.
+    The item order of every index is the order of the shapefile, the indexes do not depend on the parallelism.
+    */
+    public STRTree(SimpleFeatureCollection[] shapefilesFeatureCollections, int minSpeedForExpressway, double defaultRiverWidth,
+                   double FACTOR, DistanceEngine distanceEngine, IndexEngine indexEngine, ForkJoinPool pool) {
+        this.distanceEngine = distanceEngine;
+        this.indexEngine = indexEngine;
 
-        indexes = new STRtree[Simulation.Parameters.values().length];
-        // Create an index for the road and city center features to speed up nearest-neighbor queries
-        for (int i = 0; i < Simulation.Parameters.values().length; i++) {
-            indexes[i] = new STRtree();
+        int parameters = Simulation.Parameters.values().length;
+        List<List<Geometry>> indexItems = new ArrayList<>();
+        for (int i = 0; i < parameters; i++) {
+            indexItems.add(new ArrayList<>());
         }
-        SimpleFeatureIterator[] iterators = Arrays.stream(shapefilesFeatureCollections).map(SimpleFeatureCollection::features).toArray(SimpleFeatureIterator[]::new);
-        footways = new STRtree();
-        while (iterators[Simulation.Shapefiles.ROADS.ordinal()].hasNext()) {
-            SimpleFeature roadFeature = iterators[Simulation.Shapefiles.ROADS.ordinal()].next();
+        List<List<Geometry>> landuseItems = new ArrayList<>();
+        for (int i = 0; i < landuse.length; i++) {
+            landuseItems.add(new ArrayList<>());
+        }
+        List<Geometry> footwayItems = new ArrayList<>();
+        List<Geometry> waterItems = new ArrayList<>();
+        List<Geometry> pointItems = new ArrayList<>();
+        List<Geometry> buildingItems = new ArrayList<>();
+        List<LineString> riverLines = new ArrayList<>();
+        List<Double> riverWidths = new ArrayList<>();
+
+        List<Runnable> loaders = new ArrayList<>();
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.ROADS.ordinal()], roadFeature -> {
             org.locationtech.jts.geom.MultiLineString roadGeometry = (org.locationtech.jts.geom.MultiLineString) roadFeature.getDefaultGeometry();
             if (roadFeature.getAttribute("maxspeed") != null && (Integer) roadFeature.getAttribute("maxspeed") >= minSpeedForExpressway) {//TODO::>= or >, 60 or 90
-                indexes[Simulation.Parameters.EXPRESS_WAYS.ordinal()].insert(roadGeometry.getEnvelopeInternal(), roadGeometry);
+                indexItems.get(Simulation.Parameters.EXPRESS_WAYS.ordinal()).add(roadGeometry);
             } else {
-                indexes[Simulation.Parameters.ROADS.ordinal()].insert(roadGeometry.getEnvelopeInternal(), roadGeometry);
+                indexItems.get(Simulation.Parameters.ROADS.ordinal()).add(roadGeometry);
             }
             if ("footway".equals(roadFeature.getAttribute("type"))) {
-                footways.insert(roadGeometry.getEnvelopeInternal(), roadGeometry);
+                footwayItems.add(roadGeometry);
             }
-        }
-        while (iterators[Simulation.Shapefiles.RAILWAYS.ordinal()].hasNext()) {
-            SimpleFeature railFeature = iterators[Simulation.Shapefiles.RAILWAYS.ordinal()].next();
+        }));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.RAILWAYS.ordinal()], railFeature -> {
             org.locationtech.jts.geom.MultiLineString railGeometry = (org.locationtech.jts.geom.MultiLineString) railFeature.getDefaultGeometry();
             if ("subway".equals(railFeature.getAttribute("type"))) {
-                indexes[Simulation.Parameters.SUBWAYS.ordinal()].insert(railGeometry.getEnvelopeInternal(), railGeometry);
+                indexItems.get(Simulation.Parameters.SUBWAYS.ordinal()).add(railGeometry);
             } else {
-                indexes[Simulation.Parameters.RAILWAYS.ordinal()].insert(railGeometry.getEnvelopeInternal(), railGeometry);
+                indexItems.get(Simulation.Parameters.RAILWAYS.ordinal()).add(railGeometry);
             }
-        }
-
-        while (iterators[Simulation.Shapefiles.PLACES.ordinal()].hasNext()) {
-            SimpleFeature placeFeature = iterators[Simulation.Shapefiles.PLACES.ordinal()].next();
+        }));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.PLACES.ordinal()], placeFeature -> {
             org.locationtech.jts.geom.Point placeGeometry = (org.locationtech.jts.geom.Point) placeFeature.getDefaultGeometry();
             String type = (String) placeFeature.getAttribute("type");
             if ("city".equals(type) || "locality".equals(type)) {
-                indexes[Simulation.Parameters.MAIN_CENTERS.ordinal()].insert(placeGeometry.getEnvelopeInternal(), placeGeometry);
+                indexItems.get(Simulation.Parameters.MAIN_CENTERS.ordinal()).add(placeGeometry);
             } else if ("quarter".equals(type) || "neighbourhood".equals(type) || "square".equals(type)) {
-                indexes[Simulation.Parameters.DISTRICT_CENTERS.ordinal()].insert(placeGeometry.getEnvelopeInternal(), placeGeometry);
+                indexItems.get(Simulation.Parameters.DISTRICT_CENTERS.ordinal()).add(placeGeometry);
             } else if ("town".equals(type) || "village".equals(type)) {
-                indexes[Simulation.Parameters.LARGE_TOWN_CENTERS.ordinal()].insert(placeGeometry.getEnvelopeInternal(), placeGeometry);
+                indexItems.get(Simulation.Parameters.LARGE_TOWN_CENTERS.ordinal()).add(placeGeometry);
             } else if ("isolated_dwellin".equals(type) || "hamlet".equals(type)) {
-                indexes[Simulation.Parameters.SMALL_TOWN_CENTERS.ordinal()].insert(placeGeometry.getEnvelopeInternal(), placeGeometry);
+                indexItems.get(Simulation.Parameters.SMALL_TOWN_CENTERS.ordinal()).add(placeGeometry);
             }
-        }
-        waters = new STRtree();
-        while (iterators[Simulation.Shapefiles.NATURAL.ordinal()].hasNext()) {
-            SimpleFeature naturalFeature = iterators[Simulation.Shapefiles.NATURAL.ordinal()].next();
+        }));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.NATURAL.ordinal()], naturalFeature -> {
             if ("water".equals(naturalFeature.getAttribute("type"))) {
-                Geometry geometry = (Geometry) naturalFeature.getDefaultGeometry();
-                waters.insert(geometry.getEnvelopeInternal(), geometry);
+                waterItems.add((Geometry) naturalFeature.getDefaultGeometry());
             }
-        }
-        rivers = new STRtree();
-        while (iterators[Simulation.Shapefiles.WATERWAYS.ordinal()].hasNext()) {
-            SimpleFeature riverFeature = iterators[Simulation.Shapefiles.WATERWAYS.ordinal()].next();
+        }));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.WATERWAYS.ordinal()], riverFeature -> {
             Object geomObj = riverFeature.getDefaultGeometry();
             String type = (String) riverFeature.getAttribute("type");
             if (!"river".equals(type)) {
-                continue;
+                return;
             }
             if (geomObj instanceof MultiLineString) {
                 MultiLineString riverGeometry = (MultiLineString) geomObj;
@@ -99,134 +140,196 @@ public class STRTree {
                     width = ((Integer) riverFeature.getAttribute("width")).doubleValue(); // получаем ширину реки
                 }
                 for (int i = 0; i < riverGeometry.getNumGeometries(); i++) {
-                    LineString lineString = (LineString) riverGeometry.getGeometryN(i);
-                    Geometry bufferedLine = lineString.buffer(width / (2 * FACTOR)); // создаем буфер вдоль линии реки
-                    rivers.insert(bufferedLine.getEnvelopeInternal(), bufferedLine); // добавляем объекты в индекс
+                    riverLines.add((LineString) riverGeometry.getGeometryN(i));
+                    riverWidths.add(width);
                 }
             }
-        }
-
-        points = new STRtree();
-        while (iterators[Simulation.Shapefiles.POINTS.ordinal()].hasNext()) {
-            SimpleFeature pointFeature = iterators[Simulation.Shapefiles.POINTS.ordinal()].next();
-            Point point = (Point) pointFeature.getDefaultGeometry();
-            points.insert(point.getEnvelopeInternal(), point);
-        }
-
-        buildings = new STRtree();
-        while (iterators[Simulation.Shapefiles.BUILDINGS.ordinal()].hasNext()) {
-            SimpleFeature buildingFeature = iterators[Simulation.Shapefiles.BUILDINGS.ordinal()].next();
-            MultiPolygon building = (MultiPolygon) buildingFeature.getDefaultGeometry();
-            buildings.insert(building.getEnvelopeInternal(), building);
-        }
-
-        for (int i = 0; i < landuse.length; i++) {
-            landuse[i] = new STRtree();
-        }
-        while (iterators[Simulation.Shapefiles.LANDUSE.ordinal()].hasNext()) {
-            SimpleFeature landuseFeature = iterators[Simulation.Shapefiles.LANDUSE.ordinal()].next();
+        }));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.POINTS.ordinal()],
+                pointFeature -> pointItems.add((Point) pointFeature.getDefaultGeometry())));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.BUILDINGS.ordinal()],
+                buildingFeature -> buildingItems.add((MultiPolygon) buildingFeature.getDefaultGeometry())));
+        loaders.add(() -> forEachFeature(shapefilesFeatureCollections[Simulation.Shapefiles.LANDUSE.ordinal()], landuseFeature -> {
             MultiPolygon landuseGeometry = (MultiPolygon) landuseFeature.getDefaultGeometry();
             String type = (String) landuseFeature.getAttribute("type");
             if ("commercial".equals(type)) {
-                landuse[0].insert(landuseGeometry.getEnvelopeInternal(), landuseGeometry);
+                landuseItems.get(0).add(landuseGeometry);
             } else if ("industrial".equals(type)) {//|| "residential".equals(type)
-                landuse[1].insert(landuseGeometry.getEnvelopeInternal(), landuseGeometry);
+                landuseItems.get(1).add(landuseGeometry);
             } else if (Arrays.asList(urbanLandUseTypes).contains(type)) {
-                landuse[2].insert(landuseGeometry.getEnvelopeInternal(), landuseGeometry);
+                landuseItems.get(2).add(landuseGeometry);
             } else {
-                landuse[3].insert(landuseGeometry.getEnvelopeInternal(), landuseGeometry);
+                landuseItems.get(3).add(landuseGeometry);
             }
-        }
+        }));
+        runAll(pool, loaders);
 
-        Arrays.stream(iterators).forEach(FeatureIterator::close);
+        // создаем буферы вдоль линий рек, каждый отдельно
+        List<Geometry> riverItems = invoke(pool, () -> streamOf(pool, IntStream.range(0, riverLines.size()).boxed()
+                .collect(Collectors.toList()))
+                .map(i -> riverLines.get(i).buffer(riverWidths.get(i) / (2 * FACTOR)))
+                .collect(Collectors.toList()));
 
+        indexes = new SpatialIndex[parameters];
+        List<Runnable> builds = new ArrayList<>();
+        for (int i = 0; i < parameters; i++) {
+            int layer = i;
+            builds.add(() -> indexes[layer] = SpatialIndex.of(indexEngine, indexItems.get(layer), facets));
+        }
+        for (int i = 0; i < landuse.length; i++) {
+            int kind = i;
+            builds.add(() -> landuse[kind] = SpatialIndex.of(indexEngine, landuseItems.get(kind), facets));
+        }
+        builds.add(() -> footways = SpatialIndex.of(indexEngine, footwayItems, facets));
+        builds.add(() -> waters = SpatialIndex.of(indexEngine, waterItems, facets));
+        builds.add(() -> rivers = SpatialIndex.of(indexEngine, riverItems, facets));
+        builds.add(() -> points = SpatialIndex.of(indexEngine, pointItems, facets));
+        builds.add(() -> buildings = SpatialIndex.of(indexEngine, buildingItems, facets));
+        runAll(pool, builds);
+        for (SpatialIndex index : allIndexes()) {
+            facets.register(index.items());
+        }
+        if (distanceEngine == DistanceEngine.PLANAR) {
+            projectAll(pool);
+            facets.register(projected.values());
+        }
+    }
 
-        // Initialize the maps of nearest distances
-        nearestDistances = new Map[Simulation.Parameters.values().length];
-        for (int i = 0; i < Simulation.Parameters.values().length; i++) {
-            nearestDistances[i] = new HashMap<>();
+    private List<SpatialIndex> allIndexes() {
+        List<SpatialIndex> all = new ArrayList<>(Arrays.asList(indexes));
+        all.addAll(Arrays.asList(landuse));
+        all.addAll(Arrays.asList(rivers, points, buildings, waters, footways));
+        return all;
+    }
+
+    private static void forEachFeature(SimpleFeatureCollection collection, Consumer<SimpleFeature> action) {
+        try (SimpleFeatureIterator iterator = collection.features()) {
+            while (iterator.hasNext()) {
+                action.accept(iterator.next());
+            }
         }
     }
 
-    public double dist(Geometry g1, Geometry g2) {
-        Coordinate[] coords = new DistanceOp(g1, g2).nearestPoints();
-        return Geodesic.WGS84.Inverse(coords[0].x, coords[0].y, coords[1].x, coords[1].y).s12;
+    private static void runAll(ForkJoinPool pool, List<Runnable> tasks) {
+        invoke(pool, () -> {
+            streamOf(pool, tasks).forEach(Runnable::run);
+            return null;
+        });
+    }
+
+    private static <T> Stream<T> streamOf(ForkJoinPool pool, List<T> list) {
+        return pool == null ? list.stream() : list.parallelStream();
     }
 
-    public static class PointLineDistance implements ItemDistance {
-        @Override
-        public double distance(ItemBoundable item1, ItemBoundable item2) {
-            org.locationtech.jts.geom.MultiLineString line = (org.locationtech.jts.geom.MultiLineString) item1.getItem();
-            Point point = (Point) (item2.getItem());
-            return point.distance(line);
+    // Runs task on the pool (its parallel streams use the pool's threads) or on this thread if there is no pool
+    private static <T> T invoke(ForkJoinPool pool, Callable<T> task) {
+        try {
+            if (pool == null) {
+                return task.call();
+            }
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
-    public static class PointPointDistance implements ItemDistance {
-        @Override
-        public double distance(ItemBoundable item1, ItemBoundable item2) {
-            org.locationtech.jts.geom.Point point1 = (org.locationtech.jts.geom.Point) item1.getItem();
-            Point point2 = (Point) (item2.getItem());
-            return point2.distance(point1);
+    private void projectAll(ForkJoinPool pool) {
+        Envelope extent = new Envelope();
+        for (SpatialIndex index : allIndexes()) {
+            if (!index.isEmpty()) {
+                extent.expandToInclude(index.getBounds());
+            }
+        }
+        projection = new LocalProjection(extent);
+        projectionError = 2 * projection.maxScaleError(extent); // twice the bound to cover second order terms
+        projected = new IdentityHashMap<>();
+        for (SpatialIndex index : allIndexes()) {
+            List<Geometry> items = index.items();
+            List<Geometry> copies = invoke(pool, () -> streamOf(pool, items).map(projection::project).collect(Collectors.toList()));
+            for (int i = 0; i < items.size(); i++) {
+                projected.put(items.get(i), copies.get(i));
+            }
         }
     }
 
-    public static class PointMultiPolygonDistance implements ItemDistance {
-        @Override
-        public double distance(ItemBoundable item1, ItemBoundable item2) {
-            org.locationtech.jts.geom.MultiPolygon multiPolygon = (org.locationtech.jts.geom.MultiPolygon) item1.getItem();
-            Point point = (Point) (item2.getItem());
-            return point.distance(multiPolygon);
+    private Geometry projected(Geometry geometry) {
+        Geometry result = projected.get(geometry);
+        return result != null ? result : projection.project(geometry);
+    }
+
+    // Distance in metres between two lon/lat geometries
+    public double dist(Geometry g1, Geometry g2) {
+        if (distanceEngine == DistanceEngine.PLANAR) {
+            Coordinate[] coords = facets.nearestPoints(projected(g1), projected(g2));
+            return projection.distance(coords[0], coords[1]);
         }
+        Coordinate[] coords = facets.nearestPoints(g1, g2);
+        //Inverse takes (lat, lon), but b0 ... bSTC were fitted with (lon, lat): swapping needs them recalibrated
+        return Geodesic.WGS84.Inverse(coords[0].x, coords[0].y, coords[1].x, coords[1].y).s12;
+    }
+
+    // Same as dist(g1, g2) <= meters, the planar engine decides most pairs from the projected copies alone
+    public boolean isWithinDistance(Geometry g1, Geometry g2, double meters) {
+        if (distanceEngine == DistanceEngine.PLANAR) {
+            Geometry p1 = projected(g1);
+            Geometry p2 = projected(g2);
+            double margin = meters * projectionError;
+            if (!facets.isWithinDistance(p1, p2, meters + margin)) {
+                return false;
+            }
+            if (facets.isWithinDistance(p1, p2, meters - margin)) {
+                return true;
+            }
+        }
+        return dist(g1, g2) <= meters;
     }
 
     public boolean isInWater(Point point) {
-        MultiPolygon nearestWater = (MultiPolygon) waters.nearestNeighbour(point.getEnvelopeInternal(), point, new STRTree.PointMultiPolygonDistance());
-        if (nearestWater.contains(point)) {
+        if (metrics != null) {
+            metrics.addQueries(2);
+        }
+        Geometry nearestWater = waters.nearest(point);
+        if (nearestWater != null && facets.contains(nearestWater, point)) {
             return true;
         }
-        List<Geometry> candidates = new ArrayList<>(rivers.query(point.getEnvelopeInternal())); // получаем кандидатов на пересечение
+        List<Geometry> candidates = rivers.query(point.getEnvelopeInternal()); // получаем кандидатов на пересечение
         for (Geometry candidate : candidates) {
-            if (candidate.contains(point)) {
+            if (facets.contains(candidate, point)) {
                 return true;
             }
         }
         return false;
     }
 
-    public double[] getNearestDistances(org.locationtech.jts.geom.Point point) {
-        double[] distances = new double[Simulation.Parameters.values().length];
-        for (int i = 0; i < Simulation.Parameters.values().length; i++) {
-            if (!nearestDistances[i].containsKey(point)) {
-                // Find the nearest road by querying the spatial index
-                Object nearestFeatures;
-                if (i < 4) {
-                    nearestFeatures = indexes[i].nearestNeighbour(point.getEnvelopeInternal(), point, new STRTree.PointLineDistance());
-                } else {
-                    nearestFeatures = indexes[i].nearestNeighbour(point.getEnvelopeInternal(), point, new STRTree.PointPointDistance());
-                }
-                if (nearestFeatures == null) {
-                    // There are no roads in the shapefile, so return NaN
-                    distances[i] = Double.NaN;
-                    continue;
-                }
-                if (nearestFeatures instanceof org.locationtech.jts.geom.Point) {
-                    org.locationtech.jts.geom.Point nearest = (org.locationtech.jts.geom.Point) nearestFeatures;
-                    // Calculate the distance from the point to the nearest city center
-                    nearestDistances[i].put(point, dist(point, nearest));
-                } else if (nearestFeatures instanceof org.locationtech.jts.geom.MultiLineString) {
-                    org.locationtech.jts.geom.MultiLineString nearest = (org.locationtech.jts.geom.MultiLineString) nearestFeatures;
-                    // Calculate the distance from the point to the nearest road
-                    nearestDistances[i].put(point, dist(point, nearest));
-                } else {
-                    System.err.println("Error with classification of feature");
-                    distances[i] = Double.NaN;
-                    continue;
-                }
-
-            }
-            distances[i] = nearestDistances[i].get(point);
+    // Distance from the point to the nearest feature of the Simulation.Parameters layer i, NaN if the layer is empty
+    public double getNearestDistance(org.locationtech.jts.geom.Point point, int i) {
+        if (metrics != null) {
+            metrics.addQueries(1);
+        }
+        // Find the nearest road by querying the spatial index
+        Geometry nearestFeatures = indexes[i].nearest(point);
+        if (nearestFeatures == null) {
+            // There are no roads in the shapefile, so return NaN
+            return Double.NaN;
+        }
+        if (nearestFeatures instanceof org.locationtech.jts.geom.Point) {
+            org.locationtech.jts.geom.Point nearest = (org.locationtech.jts.geom.Point) nearestFeatures;
+            // Calculate the distance from the point to the nearest city center
+            return dist(point, nearest);
+        } else if (nearestFeatures instanceof org.locationtech.jts.geom.MultiLineString) {
+            org.locationtech.jts.geom.MultiLineString nearest = (org.locationtech.jts.geom.MultiLineString) nearestFeatures;
+            // Calculate the distance from the point to the nearest road
+            return dist(point, nearest);
+        } else {
+            System.err.println("Error with classification of feature");
+            return Double.NaN;
         }
-        return distances;
     }
 }
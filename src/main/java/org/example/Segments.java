@@ -0,0 +1,49 @@
+package org.example;
+
+/*
+Cells of every segment packed back to back: segment s owns cells[start[s]] ... cells[start[s + 1] - 1]
+and is numbered offset + s + 1 in CellGrid.curSegment (offset is 0 unless the grid is segmented by tiles).
+*/
+public class Segments {
+    final int count;
+    final int[] start;
+    final int[] cells;
+    final int offset;
+
+    Segments(int count, int[] start, int[] cells, int offset) {
+        this.count = count;
+        this.start = start;
+        this.cells = cells;
+        this.offset = offset;
+    }
+
+    // Groups the labelled cells by their 1-based label in ascending index order, label 0 means "no segment"
+    static Segments fromLabels(int[] labels, int count) {
+        int[] start = new int[count + 1];
+        for (int label : labels) {
+            if (label > 0) {
+                start[label]++;
+            }
+        }
+        for (int s = 0; s < count; s++) {
+            start[s + 1] += start[s];
+        }
+        int[] cells = new int[start[count]];
+        int[] next = new int[count];
+        System.arraycopy(start, 0, next, 0, count);
+        for (int index = 0; index < labels.length; index++) {
+            if (labels[index] > 0) {
+                cells[next[labels[index] - 1]++] = index;
+            }
+        }
+        return new Segments(count, start, cells, 0);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int size(int segment) {
+        return start[segment + 1] - start[segment];
+    }
+}
@@ -1,9 +1,7 @@
 package org.example;
 
-import javafx.util.Pair;
 import lombok.Getter;
 import lombok.Setter;
-import org.apache.commons.io.FileUtils;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.JTSFactoryFinder;
@@ -12,16 +10,18 @@ import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 
 import static java.lang.Double.min;
@@ -39,6 +39,26 @@ public class Simulation {
         SMALL_TOWN_CENTERS
     }
 
+    /*
+    NEAREST_NEIGHBOUR - one spatial index query per cell and layer.
+    DISTANCE_TRANSFORM - raster distance transform of every layer, exact queries only near features (see DistanceTransform).
+    SWEEP - the cells of a column in order, a layer is queried only when the nearest feature may change (see NearestSweep).
+    */
+    public enum DistanceLayerEngine {
+        NEAREST_NEIGHBOUR,
+        DISTANCE_TRANSFORM,
+        SWEEP
+    }
+
+    /*
+    NEAREST_NEIGHBOUR - UrbanizationEvaluator, spatial queries per cell.
+    RASTER - RasterUrbanizationEvaluator, the scoring inputs rasterized once for the whole grid (approximate).
+    */
+    public enum UrbanScoringEngine {
+        NEAREST_NEIGHBOUR,
+        RASTER
+    }
+
     public enum Shapefiles {
         PLACES,
         RAILWAYS,
@@ -100,6 +120,45 @@ public class Simulation {
     @Setter
     private static int thresholdScore = 7, scoreForFootway = 1, thresholdNumberOfPoints = 5, scoreForPoints = 2;
     @Getter
+    @Setter
+    private static int parallelism = Runtime.getRuntime().availableProcessors(); // 1 - everything runs on one thread
+    @Getter
+    @Setter
+    private static STRTree.DistanceEngine distanceEngine = STRTree.DistanceEngine.GEODESIC;
+    @Getter
+    @Setter
+    private static STRTree.IndexEngine indexEngine = STRTree.IndexEngine.STR_TREE;
+    @Getter
+    @Setter
+    private static DistanceLayerEngine distanceLayerEngine = DistanceLayerEngine.NEAREST_NEIGHBOUR;
+    @Getter
+    @Setter
+    private static double rasterRefinementCells = 2; // cells this close to a feature get exact distances, 0 - none
+    @Getter
+    @Setter
+    private static UrbanScoringEngine urbanScoringEngine = UrbanScoringEngine.NEAREST_NEIGHBOUR;
+    @Getter
+    @Setter
+    private static Long seed = null; // null - a new random seed for every simulation
+    @Getter
+    @Setter
+    private static String cacheDirectory = null; // directory of StaticLayerCache files, null - no cache
+    @Getter
+    @Setter
+    private static int tileSize = 0; // cells along a side of a tile of the tiled iteration, 0 - the whole grid at once
+    @Getter
+    @Setter
+    private static long memoryBudget = Runtime.getRuntime().maxMemory(); // bytes of heap a simulation may take, see Admission
+    @Getter
+    @Setter
+    private static boolean incrementalNeighbourhood = true; // false - neighbourhood means from scratch every iteration
+    @Getter
+    @Setter
+    private static boolean metricsEnabled = false; // per-phase timings and counters, see Metrics
+    @Getter
+    @Setter
+    private static String metricsFile = null; // metrics of every iteration, .csv or JSON lines, null - none
+    @Getter
     private int ITERATION = 0;
 
 
@@ -134,8 +193,37 @@ public class Simulation {
     @Getter
     private final SimpleFeatureCollection[] shapefilesFeatureCollections;
 
-    private final UrbanizationEvaluator urbanizationEvaluator;
-    private final STRTree strTree;
+    private final String path;
+    UrbanizationEvaluator urbanizationEvaluator; // built on the first cache miss, with the spatial index
+    STRTree strTree;
+    private final ForkJoinPool pool;
+    @Getter
+    private final long randomSeed;
+    @Getter
+    private final Admission admission;
+    /*
+    Low-memory mode, when the admission does not accept the region as is: the grid keeps no distances
+    (suitability is computed on the fly), the static layer cache is not used and the spatial index is
+    dropped once the initial grid is built.
+    */
+    @Getter
+    private final boolean lowMemory;
+    @Getter
+    private final Metrics metrics; // null unless metricsEnabled
+    private IntegralImage urbanCounts;
+    private CellGrid urbanCountsOf;
+    //incremental neighbourhood: urban neighbours of every cell in the M_CONST window and the urban mask they count
+    private int[] urbanNeighbours;
+    private long[] countedUrban;
+    private int countedM;
+    //buffers of the segmentation, reused from iteration to iteration
+    private Mat segmentationGray;
+    private Mat segmentationImage;
+    private Mat segmentationMarkers;
+    private byte[] segmentationPixels;
+    private int[] segmentationLabels;
+    private int[] segmentOfCell;
+    private final ThreadLocal<TileSegmentation> tileSegmentation = ThreadLocal.withInitial(TileSegmentation::new);
 
     public double getBoundsHeight() {
         return boundsHeight;
@@ -150,11 +238,8 @@ public class Simulation {
     }
 
     public Simulation(String path) throws IOException {
+        this.path = path;
         int n = SHAPEFILE_PATHS.length;
-        long size = FileUtils.sizeOfDirectory(new File(path)) / (1024 * 1024);
-        if (size >= 64) {
-            throw new IOException("Too big!");
-        }
         nu.pattern.OpenCV.loadLocally();
         shapefilesFeatureCollections = new SimpleFeatureCollection[n];
         for (int i = 0; i < n; i++) {
@@ -183,284 +268,706 @@ public class Simulation {
             maxY = shapefilesFeatureCollections[i].getBounds().getMaxY();
         }
 
+        long features = 0;
+        long shapefileBytes = 0;
+        for (int i = 0; i < n; i++) {
+            features += shapefilesFeatureCollections[i].size();
+            shapefileBytes += new File(path + SHAPEFILE_PATHS[i]).length();
+        }
+        admission = Admission.evaluate(features, shapefileBytes, boundsWidth, boundsHeight, FACTOR, cellSize,
+                distanceEngine == STRTree.DistanceEngine.PLANAR, parallelism, memoryBudget);
+        lowMemory = admission.getDecision() != Admission.Decision.ACCEPT;
+
         // Initialize the geometry factory
         geometryFactory = JTSFactoryFinder.getGeometryFactory();
-        strTree = new STRTree(shapefilesFeatureCollections, minSpeedForExpressway, defaultRiverWidth, FACTOR);
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        randomSeed = seed != null ? seed : new Random().nextLong();
+        metrics = metricsEnabled ? new Metrics(metricsFile) : null;
+    }
+
+    /*
+    Independent replica for ensemble runs: shares the shapefiles, the spatial index and the evaluator with source,
+    has its own iteration counter, random seed and segmentation buffers. It runs single-threaded,
+    the replicas themselves are what runs in parallel. Replicas are not instrumented.
+    */
+    private Simulation(Simulation source, int replica) {
+        path = source.path;
+        shapefilesFeatureCollections = source.shapefilesFeatureCollections;
+        geometryFactory = source.geometryFactory;
+        strTree = source.strTree;
+        urbanizationEvaluator = source.urbanizationEvaluator;
+        boundsWidth = source.boundsWidth;
+        boundsHeight = source.boundsHeight;
+        minX = source.minX;
+        maxX = source.maxX;
+        minY = source.minY;
+        maxY = source.maxY;
+        System.arraycopy(source.regressionConstants, 0, regressionConstants, 0, regressionConstants.length);
+        pool = null;
+        randomSeed = mix64(source.randomSeed + (replica + 1) * GOLDEN_GAMMA);
+        admission = source.admission;
+        lowMemory = source.lowMemory;
+        metrics = null;
+    }
+
+    // Simulation of a grid built in memory: no shapefiles, spatial index or metrics, single-threaded (for tests)
+    Simulation(long randomSeed) {
+        path = null;
+        shapefilesFeatureCollections = new SimpleFeatureCollection[0];
+        geometryFactory = JTSFactoryFinder.getGeometryFactory();
+        pool = null;
+        this.randomSeed = randomSeed;
+        admission = null;
+        lowMemory = false;
+        metrics = null;
+    }
+
+    public Simulation replica(int replica) {
+        return new Simulation(this, replica);
+    }
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final long SEGMENTATION_STREAM = -1;
+
+    /*
+    Counter-based random streams: the numbers depend only on (randomSeed, ITERATION, stream), never on the thread
+    or the order of the calls, so a seeded run gives the same result at any parallelism.
+    Streams 0 ... size - 1 belong to the cells, negative streams to the rest of the iteration.
+    Only the first number of a stream is used, it is computed in place as new SplittableRandom(seed).nextLong()
+    would return it, so a cell or a segment costs no allocation.
+    */
+    private long randomLong(long stream) {
+        return mix64(mix64(randomSeed + mix64(ITERATION * GOLDEN_GAMMA + mix64(stream))) + GOLDEN_GAMMA);
+    }
+
+    private double randomDouble(long stream) {
+        return (randomLong(stream) >>> 11) * 0x1.0p-53;
+    }
+
+    private static long segmentStream(int segment) {
+        return -2L - segment;
+    }
+
+    private static long tileStream(int tile) {
+        return Long.MIN_VALUE + tile;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // Runs body for every index in [from, to): on the simulation pool if parallelism > 1, otherwise in order
+    private void parallelFor(int from, int to, IntConsumer body) {
+        if (pool == null) {
+            for (int i = from; i < to; i++) {
+                body.accept(i);
+            }
+            return;
+        }
+        try {
+            pool.submit(() -> IntStream.range(from, to).parallel().forEach(body)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    void buildSpatialIndex() {
+        if (strTree != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        strTree = new STRTree(shapefilesFeatureCollections, minSpeedForExpressway, defaultRiverWidth, FACTOR, distanceEngine, indexEngine, pool);
+        strTree.metrics = metrics;
         urbanizationEvaluator = new UrbanizationEvaluator(cellSize, thresholdNumberOfPoints, scoreForPoints,
                 maxScoreForLanduse, scoreForBigBuildingsArea, scoreForMediumBuildingsArea, scoreForFootway, thresholdScore,
                 SCANNING_RADIUS, FACTOR, thresholdForAreaForOneBuilding, bigBuildingsArea, mediumBuildingsArea, strTree);
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.SPATIAL_INDEX, ITERATION, start, 0);
+        }
+    }
+
+    // Everything the static layers of the grid depend on besides the shapefiles
+    private String staticLayersKey() throws IOException {
+        return StaticLayerCache.key(path, SHAPEFILE_PATHS, cellSize, minSpeedForExpressway, defaultRiverWidth,
+                SCANNING_RADIUS, thresholdScore, scoreForFootway, thresholdNumberOfPoints, scoreForPoints,
+                bigBuildingsArea, mediumBuildingsArea, thresholdForAreaForOneBuilding, scoreForBigBuildingsArea,
+                scoreForMediumBuildingsArea, maxScoreForLanduse, distanceEngine, distanceLayerEngine, rasterRefinementCells, urbanScoringEngine);
+    }
+
+    double suitabilityFactor() {
+        return min(boundsHeight, boundsWidth) * FACTOR / (2);
+    }
+
+    // Suitability of every cell from its stored distances, no spatial query is repeated
+    public void updateSuitability(CellGrid grid, double[] regressionConstants) {
+        System.arraycopy(regressionConstants, 0, this.regressionConstants, 0, this.regressionConstants.length);
+        parallelFor(0, grid.getWidth(), i -> {
+            for (int j = 0; j < grid.getHeight(); j++) {
+                grid.computeSuitability(grid.index(i, j), this.regressionConstants, kConst, suitabilityFactor());
+            }
+        });
+    }
+
+    public static double[] getRegressionConstants() {
+        return new double[]{b0, bRD, bHW, bRW, bSW, bMC, bDC, bLTC, bSTC};
+    }
+
+    public static void setRegressionConstants(double[] b) {
+        b0 = b[0];
+        bRD = b[1];
+        bHW = b[2];
+        bRW = b[3];
+        bSW = b[4];
+        bMC = b[5];
+        bDC = b[6];
+        bLTC = b[7];
+        bSTC = b[8];
+    }
+
+    public CellGrid getInitialCells() {
+        CellGrid grid = loadInitialCells();
+        if (metrics != null) {
+            metrics.endIteration(ITERATION, grid);
+        }
+        return grid;
+    }
+
+    private CellGrid loadInitialCells() {
+        if (lowMemory) {
+            CellGrid grid = computeInitialCells();
+            strTree = null;
+            urbanizationEvaluator = null;
+            return grid;
+        }
+        StaticLayerCache cache = cacheDirectory != null ? new StaticLayerCache(Paths.get(cacheDirectory)) : null;
+        String key = null;
+        if (cache != null) {
+            try {
+                key = staticLayersKey();
+                CellGrid cached = cache.load(key, degreeOfPerturbation);
+                if (cached != null) {
+                    updateSuitability(cached, regressionConstants);
+                    return cached;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        CellGrid grid = computeInitialCells();
+        if (key != null) {
+            try {
+                cache.store(key, grid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return grid;
     }
 
-    public Cell[][] getInitialCells() {
+    private CellGrid computeInitialCells() {
+        buildSpatialIndex();
         // Calculate the number of cells in the grid
         int numCellsX = (int) Math.ceil(boundsWidth * FACTOR / cellSize);
         int numCellsY = (int) Math.ceil(boundsHeight * FACTOR / cellSize);
-        // Create a 2D array to hold the cells
-        Cell[][] cells = new Cell[numCellsX][numCellsY];
-        // Initialize the cells with their centroid coordinates and the nearest road and city center distances
+        // Centroid coordinates are accumulated exactly as in the sequential walk, so every column gets the same values
+        double[] xs = new double[numCellsX];
+        double[] ys = new double[numCellsY];
         double x = minX;
         double d_x = (boundsWidth) / numCellsX;
+        for (int i = 0; i < numCellsX; i++) {
+            xs[i] = x;
+            x += d_x;
+        }
         double y = maxY;
         double d_y = (-boundsHeight) / numCellsY;
-        for (int i = 0; i < numCellsX; i++) {
-            for (int j = 0; j < numCellsY; j++) {
-                Point centroid = geometryFactory.createPoint(new Coordinate(x, y));
-                // Create a new cell object and store it in the array
-                cells[i][j] = new Cell(minX + i * cellSize + cellSize / 2,
-                        minY + j * cellSize + cellSize / 2, i, j,
-                        strTree.getNearestDistances(centroid), strTree.isInWater(centroid), centroid,
-                        regressionConstants, degreeOfPerturbation, kConst,
-                        min(boundsHeight, boundsWidth) * FACTOR / (2));
-                urbanizationEvaluator.initUrban(cells[i][j]);
-                y += d_y;
+        for (int j = 0; j < numCellsY; j++) {
+            ys[j] = y;
+            y += d_y;
+        }
+        CellGrid grid = new CellGrid(xs, ys, d_x, d_y, degreeOfPerturbation, !lowMemory);
+        //the distance transform needs the distance layers of the whole grid
+        if (distanceLayerEngine == DistanceLayerEngine.DISTANCE_TRANSFORM && !lowMemory) {
+            long start = System.nanoTime();
+            DistanceTransform distanceTransform = new DistanceTransform(grid, strTree, geometryFactory, rasterRefinementCells);
+            parallelFor(0, CellGrid.PARAMETERS, distanceTransform::transform);
+            parallelFor(0, numCellsX, distanceTransform::refineColumn);
+            if (metrics != null) {
+                metrics.end(Metrics.Phase.DISTANCES, ITERATION, start, grid.getSize());
             }
-            y = maxY;
-            x += d_x;
         }
-        return cells;
+        long start = System.nanoTime();
+        long[] water = WaterMask.rasterize(grid, strTree.getWaters().items(), strTree.getRivers().items());
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.DISTANCES, ITERATION, start, grid.getSize());
+        }
+        long[] urban = urbanScoringEngine == UrbanScoringEngine.RASTER ? rasterInitialUrban(grid) : null;
+        // Initialize the cells with their centroid coordinates and the nearest road and city center distances
+        parallelFor(0, numCellsX, i -> initColumn(grid, i, water, urban));
+        return grid;
     }
 
-    public void doIteration(Cell[][] cells) {
-        ITERATION++;
-        //calc neighbourhoodMeanUrban, RA and develeopment probability
-        for (int i = 0; i < cells.length; i++) {
-            for (int j = 0; j < cells[0].length; j++) {
-                Cell currentCell = cells[i][j];
-                double sum = 0;
-                double cnt = 0;
-                int m = M_CONST;
-                for (int k = -(m / 2); k <= (m / 2); k++) {
-                    for (int l = -(m / 2); l <= (m / 2); l++) {
-                        if (0 <= i + k && i + k < cells.length && j + l < cells[0].length && 0 <= j + l && (k != 0 || l != 0)) {
-                            cnt++;
-                            if (cells[i + k][j + l].isUrban) {
-                                sum++;
-                            }
-                        }
+    private long[] rasterInitialUrban(CellGrid grid) {
+        long start = System.nanoTime();
+        long[] urban = new RasterUrbanizationEvaluator(urbanizationEvaluator, grid).evaluate();
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.INIT_URBAN, ITERATION, start, grid.getSize());
+        }
+        return urban;
+    }
+
+    // urban - initial urban cells if already known, null - they are scored here
+    private void initColumn(CellGrid grid, int i, long[] water, long[] urban) {
+        int height = grid.getHeight();
+        boolean[] columnLand = new boolean[height];
+        boolean[] columnUrban = new boolean[height];
+        double[] distances = new double[CellGrid.PARAMETERS];
+        NearestSweep sweep = distanceLayerEngine == DistanceLayerEngine.SWEEP ? new NearestSweep(strTree) : null;
+        long distanceNanos = 0;
+        long urbanNanos = 0;
+        for (int j = 0; j < height; j++) {
+            long start = metrics != null ? System.nanoTime() : 0;
+            int index = grid.index(i, j);
+            Point centroid = geometryFactory.createPoint(new Coordinate(grid.centroidX[i], grid.centroidY[j]));
+            //the distance transform has filled the layers already unless there is no room for them
+            if (distanceLayerEngine != DistanceLayerEngine.DISTANCE_TRANSFORM || !grid.hasDistances()) {
+                if (sweep != null) {
+                    sweep.nearestDistances(centroid, distances);
+                } else {
+                    for (int layer = 0; layer < CellGrid.PARAMETERS; layer++) {
+                        distances[layer] = strTree.getNearestDistance(centroid, layer);
                     }
                 }
-                currentCell.neighbourhoodMeanUrban = sum / cnt;
+            }
+            if (!grid.hasDistances()) {
+                grid.computeSuitability(index, distances, 0, regressionConstants, kConst, suitabilityFactor());
+            } else {
+                if (distanceLayerEngine != DistanceLayerEngine.DISTANCE_TRANSFORM) {
+                    System.arraycopy(distances, 0, grid.nearestDistances, index * CellGrid.PARAMETERS, CellGrid.PARAMETERS);
+                }
+                grid.computeSuitability(index, regressionConstants, kConst, suitabilityFactor());
+            }
+            columnLand[j] = !CellGrid.get(water, index);
+            if (metrics != null) {
+                long end = System.nanoTime();
+                distanceNanos += end - start;
+                start = end;
+            }
+            columnUrban[j] = urban != null ? CellGrid.get(urban, index) : urbanizationEvaluator.initUrban(centroid);
+            if (columnUrban[j]) {
+                grid.newUrbanAt[index] = -1;
+            }
+            if (metrics != null) {
+                urbanNanos += System.nanoTime() - start;
+            }
+        }
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.DISTANCES, ITERATION, distanceNanos, height);
+            metrics.add(Metrics.Phase.INIT_URBAN, ITERATION, urbanNanos, height);
+        }
+        // neighbouring columns may share a word of the bit sets
+        synchronized (grid) {
+            for (int j = 0; j < height; j++) {
+                grid.setLand(grid.index(i, j), columnLand[j]);
+                grid.setUrban(grid.index(i, j), columnUrban[j]);
+            }
+        }
+    }
 
-                //RA
-                currentCell.setRA();
+    public void doIteration(CellGrid grid) {
+        ITERATION++;
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        long start = metrics != null ? System.nanoTime() : 0;
+        countUrban(grid);
+        //calc neighbourhoodMeanUrban, RA and develeopment probability
+        //every cell reads only the snapshot above and writes only its own slots, so the columns run in parallel
+        if (incrementalNeighbourhood) {
+            updateNeighbourhoods(grid);
+        }
+        parallelFor(0, width, i -> probabilityColumn(grid, i, !incrementalNeighbourhood));
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.PROBABILITY, ITERATION, start, grid.getSize());
+        }
 
-                //development probability
-                if (currentCell.land) {
-                    currentCell.developmentProbability = min(1, currentCell.RA * (currentCell.suitabilityCoefficient + currentCell.neighbourhoodMeanUrban));
-                } else {
-                    currentCell.developmentProbability = 0;
-                }
+        if (tileSize > 0) {
+            developTiles(grid);
+        } else {
+            //Segmentation
+            start = metrics != null ? System.nanoTime() : 0;
+            Segments segments = segmentation(grid);
+            if (metrics != null) {
+                metrics.end(Metrics.Phase.SEGMENTATION, ITERATION, start, grid.getSize());
             }
+            develop(grid, segments, width * height, false);
+        }
+        if (metrics != null) {
+            metrics.endIteration(ITERATION, grid);
         }
+    }
 
-        //Segmentation
-        ArrayList<ArrayList<Cell>> segments = segmentation(cells);
-        ArrayList<Pair<Integer, Double>> utilityAssessments = new ArrayList<>();
+    /*
+    Tiled iteration for large grids: segmentation and development run per tile, the tiles in parallel on the
+    work-stealing pool. Neighbourhood counts of every tile come from the summed-area table of the iteration's
+    start, which plays the role of the halo exchange; the halo of max(M_CONST / 2, NEIGHBOURHOOD_WIDTH) cells
+    is part of every tile's segmentation image. A segment never leaves its tile and gets an id from the tile's
+    own range, so the tiles write disjoint cells and a seeded run does not depend on the scheduling.
+    Only the packed urban bits may share a word across tiles, those writes are synchronized.
+    */
+    private void developTiles(CellGrid grid) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        int halo = Math.max(M_CONST / 2, NEIGHBOURHOOD_WIDTH);
+        double markersPerCell = Math.pow(grid.getSize(), degreeOfSegmentation) / grid.getSize();
+        Segments[] tileSegments = new Segments[tilesX * tilesY];
+        long start = metrics != null ? System.nanoTime() : 0;
+        parallelFor(0, tileSegments.length, t -> {
+            int i0 = t / tilesY * tileSize;
+            int j0 = t % tilesY * tileSize;
+            int i1 = Math.min(width, i0 + tileSize) - 1;
+            int j1 = Math.min(height, j0 + tileSize) - 1;
+            int markers = Math.max(1, (int) Math.round(markersPerCell * (i1 - i0 + 1) * (j1 - j0 + 1)));
+            Random random = new Random(randomLong(tileStream(t)));
+            tileSegments[t] = tileSegmentation.get().segment(grid, i0, j0, i1, j1, halo, random, markers,
+                    t * tileSize * tileSize);
+        });
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.SEGMENTATION, ITERATION, start, grid.getSize());
+        }
+        parallelFor(0, tileSegments.length, t -> {
+            int tileWidth = Math.min(width, t / tilesY * tileSize + tileSize) - t / tilesY * tileSize;
+            int tileHeight = Math.min(height, t % tilesY * tileSize + tileSize) - t % tilesY * tileSize;
+            develop(grid, tileSegments[t], tileWidth * tileHeight, true);
+        });
+    }
+
+    // Urban mask of the previous iteration, every neighbourhood count of the iteration is taken from it
+    void countUrban(CellGrid grid) {
+        if (urbanCounts == null || urbanCountsOf != grid) {
+            urbanCounts = new IntegralImage(grid.getWidth(), grid.getHeight());
+            urbanCountsOf = grid;
+            urbanNeighbours = null;
+        }
+        urbanCounts.build(grid.urban);
+    }
+
+    /*
+    Object selection, sorting and type detection of the segments, cells is the number of cells they were cut from.
+    concurrent - other threads develop other segments of the same grid at the same time.
+    */
+    void develop(CellGrid grid, Segments segments, int cells, boolean concurrent) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        if (segments.size() == 0) {
+            return;
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        double[] utilityAssessments = new double[segments.size()];
         //Object selection
-        double urbanCount = 0;
         for (int i = 0; i < segments.size(); i++) {
             double meanDevelopmentProbabilities = 0;
             double dispersionDevelopmentProbabilities = 0;
-            for (Cell cell :
-                    segments.get(i)) {
-                meanDevelopmentProbabilities += cell.developmentProbability;
-                dispersionDevelopmentProbabilities += cell.developmentProbability * cell.developmentProbability;
-                if (cell.isUrban) {
-                    urbanCount++;
-                }
+            for (int c = segments.start[i]; c < segments.start[i + 1]; c++) {
+                double developmentProbability = grid.developmentProbability[segments.cells[c]];
+                meanDevelopmentProbabilities += developmentProbability;
+                dispersionDevelopmentProbabilities += developmentProbability * developmentProbability;
             }
-            meanDevelopmentProbabilities /= segments.get(i).size();
-            dispersionDevelopmentProbabilities /= segments.get(i).size();
+            meanDevelopmentProbabilities /= segments.size(i);
+            dispersionDevelopmentProbabilities /= segments.size(i);
             dispersionDevelopmentProbabilities -= meanDevelopmentProbabilities * meanDevelopmentProbabilities;
             double standardDeviationDevelopmentProbabilities = Math.sqrt(dispersionDevelopmentProbabilities);
-            utilityAssessments.add(new Pair<>(i, W_1 * meanDevelopmentProbabilities - W_2 * standardDeviationDevelopmentProbabilities));
+            utilityAssessments[i] = W_1 * meanDevelopmentProbabilities - W_2 * standardDeviationDevelopmentProbabilities;
         }
 
         //Sorting
-        utilityAssessments.sort(new Comparator<Pair<Integer, Double>>() {
+        Integer[] order = new Integer[segments.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
             @Override
-            public int compare(Pair<Integer, Double> o1, Pair<Integer, Double> o2) {
-                return -Double.compare(o1.getValue(), o2.getValue());
+            public int compare(Integer o1, Integer o2) {
+                return -Double.compare(utilityAssessments[o1], utilityAssessments[o2]);
             }
         });
-        int meanUrbanForPatch = cells.length * cells[0].length / segments.size();
+        int meanUrbanForPatch = cells / segments.size();
+        if (metrics != null) {
+            long end = System.nanoTime();
+            metrics.add(Metrics.Phase.SORTING, ITERATION, end - start, segments.cells.length);
+            metrics.addSegments(segments.size());
+            start = end;
+        }
+        long visited = 0;
+        //one generator for all the segments, reseeded from the segment's stream
+        Random random = new Random();
 
         //Type detection
         for (int i = 0; i < segments.size(); i++) {
-            ArrayList<Cell> currentSegment = segments.get(utilityAssessments.get(i).getKey());
+            int segment = order[i];
+            int from = segments.start[segment];
+            int to = segments.start[segment + 1];
+            int segmentSize = to - from;
             //LEInei computing
             double LEInei = 0;
-            if (segments.size() == 1) {
-                System.out.println("!");
-            }
-            for (Cell cell :
-                    currentSegment) {
-                if (cell.isUrban) {
-                    urbanCount++;
-                }
-                double Ni = 0;
-                int cellI = cell.i;
-                int cellJ = cell.j;
-                for (int k = -NEIGHBOURHOOD_WIDTH; k <= NEIGHBOURHOOD_WIDTH; k++) {
-                    for (int l = -NEIGHBOURHOOD_WIDTH; l <= NEIGHBOURHOOD_WIDTH; l++) {
-                        if ((k != 0 || l != 0) && 0 <= k + cellI && k + cellI < cells.length &&
-                                0 <= l + cellJ && l + cellJ < cells[0].length) {
-                            if (cells[k + cellI][l + cellJ].isUrban) {
-                                Ni++;
-                            }
-                        }
-                    }
-                }
+            for (int c = from; c < to; c++) {
+                int cell = segments.cells[c];
+                int cellI = grid.column(cell);
+                int cellJ = grid.row(cell);
+                double Ni = urbanCounts.count(cellI - NEIGHBOURHOOD_WIDTH, cellJ - NEIGHBOURHOOD_WIDTH,
+                        cellI + NEIGHBOURHOOD_WIDTH, cellJ + NEIGHBOURHOOD_WIDTH) - (grid.isUrban(cell) ? 1 : 0);
                 Ni /= 4 * NEIGHBOURHOOD_WIDTH * NEIGHBOURHOOD_WIDTH - 1;
                 LEInei += Ni;
             }
-            LEInei /= currentSegment.size();
-
+            LEInei /= segmentSize;
+            visited += segmentSize;
 
+            random.setSeed(randomLong(segmentStream(segments.offset + segment)));
             if (LEInei > N_OMEGA) {
                 //Organic
                 double meanDevelopmentProbability = 0;
-                for (Cell cell :
-                        currentSegment) {
-                    meanDevelopmentProbability += cell.developmentProbability;
+                for (int c = from; c < to; c++) {
+                    meanDevelopmentProbability += grid.developmentProbability[segments.cells[c]];
                 }
-                meanDevelopmentProbability /= currentSegment.size();
-                Random random = new Random();
+                meanDevelopmentProbability /= segmentSize;
                 double randomValue = random.nextDouble();
                 if (randomValue <= meanDevelopmentProbability) {
-                    for (Cell cell :
-                            currentSegment) {
-                        if (!cell.isUrban && cell.land) {
-                            if (cells[cell.i + 1][cell.j].curSegment != cell.curSegment &&
-                                    cells[cell.i - 1][cell.j].curSegment != cell.curSegment &&
-                                    cells[cell.i][cell.j + 1].curSegment != cell.curSegment &&
-                                    cells[cell.i][cell.j - 1].curSegment != cell.curSegment) {
+                    for (int c = from; c < to; c++) {
+                        int cell = segments.cells[c];
+                        if (!grid.isUrban(cell) && grid.isLand(cell)) {
+                            int cellI = grid.column(cell);
+                            int cellJ = grid.row(cell);
+                            int cellSegment = grid.curSegment[cell];
+                            if (!inSegment(grid, cellI + 1, cellJ, cellSegment) &&
+                                    !inSegment(grid, cellI - 1, cellJ, cellSegment) &&
+                                    !inSegment(grid, cellI, cellJ + 1, cellSegment) &&
+                                    !inSegment(grid, cellI, cellJ - 1, cellSegment)) {
                                 continue;
                             }
-                            cell.newUrban = true;
-                            cell.newUrbanAt = ITERATION;
-                            cell.isUrban = true;
+                            grid.newUrbanAt[cell] = ITERATION;
+                            setUrban(grid, cell, concurrent);
                         }
                     }
                 }
             } else {
-                //Spontaneous
-                Random random = new Random();
-
-                ArrayList<Cell> currentSegmentCopy = new ArrayList<>(currentSegment);
-
-                /*currentSegmentCopy.sort(new Comparator<Cell>() {
-                    @Override
-                    public int compare(Cell o1, Cell o2) {
-                        return Double.compare(o1.suitabilityCoefficient, o2.suitabilityCoefficient);
-                    }
-                });*/
-
+                //Spontaneous, the cells of the segment are read in place from segments.cells
                 int nowTriedToChangeToUrban = 0;
-                for (int j = 0; j < currentSegmentCopy.size(); j++) {
-                    int randId = random.nextInt(currentSegmentCopy.size());
-                    if (currentSegmentCopy.get(j).suitabilityCoefficient < 0.05) {//block
+                for (int j = 0; j < segmentSize; j++) {
+                    int randId = random.nextInt(segmentSize);
+                    if (grid.suitability[segments.cells[from + j]] < 0.05) {//block
                         break;
                     }
-                    if (currentSegmentCopy.get(randId).isUrban) {
+                    if (grid.isUrban(segments.cells[from + randId])) {
                         continue;
                     }
-                    Cell currentCell = currentSegmentCopy.get(randId);
+                    int currentCell = segments.cells[from + randId];
                     while (nowTriedToChangeToUrban < meanUrbanForPatch) {
-                        if (random.nextDouble() <= currentCell.developmentProbability) {
-                            currentCell.isUrban = true;
-                            currentCell.newUrban = true;
+                        if (random.nextDouble() <= grid.developmentProbability[currentCell] && !grid.isUrban(currentCell)) {
+                            grid.newUrbanAt[currentCell] = ITERATION;
+                            setUrban(grid, currentCell, concurrent);
                         }
                         nowTriedToChangeToUrban++;
-                        ArrayList<Cell> neighbourhoods = new ArrayList<>();
+                        int currentI = grid.column(currentCell);
+                        int currentJ = grid.row(currentCell);
+                        //the most suitable free land neighbour of the same segment, the first one on ties
+                        int next = -1;
                         for (int k = -1; k <= 1; k++) {
                             for (int l = -1; l <= 1; l++) {
-                                if (0 <= currentCell.i + k && currentCell.i + k < cells.length &&
-                                        0 <= currentCell.j + l && currentCell.j + l < cells[0].length &&
-                                        cells[currentCell.i + k][currentCell.j + l].land &&
-                                        !cells[currentCell.i + k][currentCell.j + l].isUrban &&
-                                        cells[currentCell.i + k][currentCell.j + l].curSegment == currentCell.curSegment) {
-                                    neighbourhoods.add(cells[currentCell.i + k][currentCell.j + l]);
+                                if (0 <= currentI + k && currentI + k < width &&
+                                        0 <= currentJ + l && currentJ + l < height) {
+                                    int neighbour = grid.index(currentI + k, currentJ + l);
+                                    if (grid.isLand(neighbour) && !grid.isUrban(neighbour) &&
+                                            grid.curSegment[neighbour] == grid.curSegment[currentCell] &&
+                                            (next == -1 || grid.suitability[neighbour] > grid.suitability[next])) {
+                                        next = neighbour;
+                                    }
                                 }
                             }
                         }
-                        if (neighbourhoods.size() == 0) {
+                        if (next == -1) {
                             break;
                         }
-
-                        currentCell = neighbourhoods.get(IntStream.range(0, neighbourhoods.size())
-                                .boxed()
-                                .max(Comparator.comparingDouble(id
-                                        -> neighbourhoods.get(id).suitabilityCoefficient)).orElse(-1));
+                        currentCell = next;
                     }
                 }
+                visited += nowTriedToChangeToUrban;
+            }
+        }
+        if (metrics != null) {
+            metrics.end(Metrics.Phase.GROWTH, ITERATION, start, visited);
+        }
+    }
+
+    // Whether (i, j) lies in the grid and belongs to the segment
+    private static boolean inSegment(CellGrid grid, int i, int j, int segment) {
+        return 0 <= i && i < grid.getWidth() && 0 <= j && j < grid.getHeight()
+                && grid.curSegment[grid.index(i, j)] == segment;
+    }
+
+    private static void setUrban(CellGrid grid, int index, boolean concurrent) {
+        if (concurrent) {
+            // cells of different tiles may share a word of the bit set
+            synchronized (grid) {
+                grid.setUrban(index, true);
             }
+        } else {
+            grid.setUrban(index, true);
         }
     }
 
+    private void probabilityColumn(CellGrid grid, int i, boolean neighbourhood) {
+        int m = M_CONST;
+        for (int j = 0; j < grid.getHeight(); j++) {
+            int index = grid.index(i, j);
+            if (neighbourhood) {
+                int self = grid.isUrban(index) ? 1 : 0;
+                double sum = urbanCounts.count(i - m / 2, j - m / 2, i + m / 2, j + m / 2) - self;
+                double cnt = urbanCounts.area(i - m / 2, j - m / 2, i + m / 2, j + m / 2) - 1;
+                grid.neighbourhoodMeanUrban[index] = sum / cnt;
+            }
 
-    private ArrayList<ArrayList<Cell>> segmentation(Cell[][] cells) {
+            //RA and development probability, water never develops so its RA is not needed beyond the random number
+            double random = randomDouble(index);
+            if (grid.isLand(index)) {
+                double RA = grid.setRA(index, random);
+                grid.developmentProbability[index] = min(1, RA * (grid.suitability[index] + grid.neighbourhoodMeanUrban[index]));
+            } else {
+                grid.randomForRA[index] = random;
+                grid.developmentProbability[index] = 0;
+            }
+        }
+    }
 
-        ArrayList<ArrayList<Cell>> segments = new ArrayList<>();
-        // 1. Преобразование Cell[][] в Mat
-        Mat img = new Mat(cells.length, cells[0].length, CvType.CV_8UC3);
-        for (int i = 0; i < cells.length; i++) {
-            for (int j = 0; j < cells[0].length; j++) {
-                Cell cell = cells[i][j];
-                double grayBright = cell.randomForRAFrom0to1 + cell.developmentProbability + cell.neighbourhoodMeanUrban + cell.suitabilityCoefficient;
-                grayBright /= 4; //norming
-                double val = grayBright * 255;
-                double[] values = {val, val, val};
-                img.put(i, j, values);
+    /*
+    Incremental neighbourhood means: the urban neighbour counts are kept between iterations, only the cells whose
+    urban bit changed since the last count (found by comparing the packed masks word by word) update the counts
+    of their M_CONST window. Water and saturated regions with no change around them cost nothing, a late
+    iteration with sparse growth costs the changed words. The counts are exact, the means equal a full sweep.
+    */
+    private void updateNeighbourhoods(CellGrid grid) {
+        int m = M_CONST;
+        if (urbanNeighbours == null || countedM != m) {
+            urbanNeighbours = new int[grid.getSize()];
+            countedM = m;
+            parallelFor(0, grid.getWidth(), i -> {
+                for (int j = 0; j < grid.getHeight(); j++) {
+                    int index = grid.index(i, j);
+                    urbanNeighbours[index] = urbanCounts.count(i - m / 2, j - m / 2, i + m / 2, j + m / 2)
+                            - (grid.isUrban(index) ? 1 : 0);
+                    grid.neighbourhoodMeanUrban[index] = urbanNeighbours[index]
+                            / (double) (urbanCounts.area(i - m / 2, j - m / 2, i + m / 2, j + m / 2) - 1);
+                }
+            });
+            countedUrban = grid.urban.clone();
+            return;
+        }
+        long[] urban = grid.urban;
+        for (int word = 0; word < urban.length; word++) {
+            long changed = urban[word] ^ countedUrban[word];
+            while (changed != 0) {
+                int index = word << 6 | Long.numberOfTrailingZeros(changed);
+                changed &= changed - 1;
+                int delta = grid.isUrban(index) ? 1 : -1;
+                int ci = grid.column(index);
+                int cj = grid.row(index);
+                for (int i = Math.max(0, ci - m / 2); i <= Math.min(grid.getWidth() - 1, ci + m / 2); i++) {
+                    for (int j = Math.max(0, cj - m / 2); j <= Math.min(grid.getHeight() - 1, cj + m / 2); j++) {
+                        int neighbour = grid.index(i, j);
+                        if (neighbour != index) {
+                            urbanNeighbours[neighbour] += delta;
+                            grid.neighbourhoodMeanUrban[neighbour] = urbanNeighbours[neighbour]
+                                    / (double) (urbanCounts.area(i - m / 2, j - m / 2, i + m / 2, j + m / 2) - 1);
+                        }
+                    }
+                }
             }
+            countedUrban[word] = urban[word];
         }
+    }
+
+    static byte segmentationPixel(CellGrid grid, int index) {
+        double grayBright = grid.randomForRA[index] + grid.developmentProbability[index] +
+                grid.neighbourhoodMeanUrban[index] + grid.suitability[index];
+        grayBright /= 4; //norming
+        double val = Math.rint(grayBright * 255);
+        return (byte) (val <= 0 ? 0 : val >= 255 ? 255 : (int) val);
+    }
+
+    Segments segmentation(CellGrid grid) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        int size = grid.getSize();
+        if (segmentationMarkers == null || segmentationPixels.length != size) {
+            // Mat rows are the columns i of the grid, so Mat data and grid indices share the same order
+            segmentationGray = new Mat(width, height, CvType.CV_8UC1);
+            segmentationImage = new Mat(width, height, CvType.CV_8UC3);
+            segmentationMarkers = new Mat(width, height, CvType.CV_32S);
+            segmentationPixels = new byte[size];
+            segmentationLabels = new int[size];
+            segmentOfCell = new int[size];
+        }
+        // 1. Преобразование CellGrid в Mat (все три канала одинаковые, поэтому заполняем один и переносим за раз)
+        for (int index = 0; index < size; index++) {
+            segmentationPixels[index] = segmentationPixel(grid, index);
+        }
+        segmentationGray.put(0, 0, segmentationPixels);
 
 // 2. Фильтрация изображения
-        Imgproc.GaussianBlur(img, img, new Size(3, 3), 0);
+        Imgproc.GaussianBlur(segmentationGray, segmentationGray, new Size(3, 3), 0);
+        // watershed only accepts 8-bit three-channel images
+        Imgproc.cvtColor(segmentationGray, segmentationImage, Imgproc.COLOR_GRAY2BGR);
 
 // 3. Водораздел
-
-        Mat markers = new Mat(img.size(), CvType.CV_32S, new Scalar(0));
-        Random rand = new Random();
-        int numOFMarkers = (int) Math.pow(cells.length * cells[0].length, degreeOfSegmentation);
+        int[] labels = segmentationLabels;
+        Arrays.fill(labels, 0);
+        Random rand = new Random(randomLong(SEGMENTATION_STREAM));
+        int numOFMarkers = (int) Math.pow(size, degreeOfSegmentation);
         for (int i = 0; i < numOFMarkers; i++) {
-            int x = rand.nextInt(img.cols());
-            int y = rand.nextInt(img.rows());
-            markers.put(y, x, i + 1);
+            int x = rand.nextInt(height);
+            int y = rand.nextInt(width);
+            labels[y * height + x] = i + 1;
         }
+        segmentationMarkers.put(0, 0, labels);
 
-        Imgproc.watershed(img, markers);
+        Imgproc.watershed(segmentationImage, segmentationMarkers);
+        segmentationMarkers.get(0, 0, labels);
 
 // 4. Присвоение значений клеткам
         int cnt = 1;
-        HashMap<Integer, Integer> dict = new HashMap<>();
-        for (int i = 0; i < cells.length; i++) {
-            for (int j = 0; j < cells[0].length; j++) {
-                int region = (int) markers.get(i, j)[0];
+        int[] dict = new int[numOFMarkers + 2]; // region -1 ... numOFMarkers -> segment number, 0 - not met yet
+        Arrays.fill(segmentOfCell, 0);
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                int index = grid.index(i, j);
+                int region = labels[index];
                 if (region == -1) {
-                    if (i != 0 && j != 0 && i != cells.length - 1 && j != cells[0].length - 1) {
-                        if (markers.get(i + 1, j)[0] > 0) {
-                            region = (int) markers.get(i + 1, j)[0];
-                        } else if (markers.get(i - 1, j)[0] > 0) {
-                            region = (int) markers.get(i - 1, j)[0];
-                        } else if (markers.get(i, j + 1)[0] > 0) {
-                            region = (int) markers.get(i, j + 1)[0];
+                    if (i != 0 && j != 0 && i != width - 1 && j != height - 1) {
+                        if (labels[index + height] > 0) {
+                            region = labels[index + height];
+                        } else if (labels[index - height] > 0) {
+                            region = labels[index - height];
+                        } else if (labels[index + 1] > 0) {
+                            region = labels[index + 1];
                         } else {
-                            region = (int) markers.get(i, j - 1)[0];
+                            region = labels[index - 1];
                         }
                     } else {
                         continue;
                     }
                 }
-                if (!dict.containsKey(region)) {
-                    dict.put(region, cnt++);
-                    segments.add(new ArrayList<>());
+                if (dict[region + 1] == 0) {
+                    dict[region + 1] = cnt++;
                 }
-                segments.get(dict.get(region) - 1).add(cells[i][j]);
-                cells[i][j].curSegment = dict.get(region);
+                segmentOfCell[index] = dict[region + 1];
+                grid.curSegment[index] = dict[region + 1];
             }
         }
 
-        return segments;
+        return Segments.fromLabels(segmentOfCell, cnt - 1);
     }
-}
\ No newline at end of file
+}
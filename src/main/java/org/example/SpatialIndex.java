@@ -0,0 +1,36 @@
+package org.example;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.util.List;
+
+/*
+Read-only index over the geometries of one layer of STRTree, built at once from their list.
+Distances are Geometry.distance, in the coordinates of the geometries (degrees for the shapefiles).
+Queries may run from any number of threads.
+*/
+public interface SpatialIndex {
+    // Nearest geometry to the point, null if the index is empty
+    Geometry nearest(Point point);
+
+    // The k nearest geometries, nearest first; null-padded to k when the index has fewer
+    Geometry[] nearest(Point point, int k);
+
+    // Geometries whose envelope intersects the envelope
+    List<Geometry> query(Envelope envelope);
+
+    // Every geometry in the order it was given
+    List<Geometry> items();
+
+    // Envelope of all the geometries, null if the index is empty
+    Envelope getBounds();
+
+    boolean isEmpty();
+
+    // Index whose item distances go through the facet indexes of facets
+    static SpatialIndex of(STRTree.IndexEngine engine, List<? extends Geometry> items, FacetIndexCache facets) {
+        return engine == STRTree.IndexEngine.STR_TREE ? new JtsSpatialIndex(items, facets) : new HilbertRTree(items, facets);
+    }
+}
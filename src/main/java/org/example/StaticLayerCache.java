@@ -0,0 +1,182 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+Binary cache of the static layers of a grid: centroid coordinates, nearest distances, land and the initial urban mask.
+The file name is a SHA-256 of the shapefile contents and of every parameter those layers depend on, so a changed
+input never hits a stale file. Suitability is not stored, it is recomputed from the distances with the current
+regression constants. Files are read back through memory mappings.
+Files are never deleted, a grid takes a little over 8 * PARAMETERS bytes per cell. VERSION goes up whenever the way
+the cached layers are computed changes, so that files of an earlier build are not read.
+*/
+public class StaticLayerCache {
+    private static final int MAGIC = 0x47454f41; // "GEOA"
+    private static final int VERSION = 3; // 2 - land from the rasterized water mask, 3 - geodesic axes as fitted
+    private static final int HEADER = 4 * 4 + 2 * 8;
+    private static final long CHUNK = 1 << 30; // longest single mapping in bytes
+    private static final String[] EXTENSIONS = {".shp", ".shx", ".dbf"};
+
+    private final Path directory;
+
+    public StaticLayerCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // SHA-256 of the shapefiles in path and of the parameters, as a hex string
+    public static String key(String path, String[] shapefiles, Object... parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        for (String shapefile : shapefiles) {
+            for (String extension : EXTENSIONS) {
+                File file = new File(path + shapefile.replace(".shp", extension));
+                digest.update(file.getName().getBytes("UTF-8"));
+                if (!file.exists()) {
+                    continue;
+                }
+                try (InputStream in = Files.newInputStream(file.toPath())) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+        }
+        digest.update((VERSION + Arrays.deepToString(parameters)).getBytes("UTF-8"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    // The cached grid or null if there is none, the dynamic state of the grid is set to its initial values
+    public CellGrid load(String key, double degreeOfPerturbation) throws IOException {
+        Path file = directory.resolve(key + ".bin");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            double stepX = header.getDouble();
+            double stepY = header.getDouble();
+            long size = (long) width * height;
+            if (channel.size() != HEADER + 8 * (width + height + size * CellGrid.PARAMETERS + 2L * CellGrid.words((int) size))) {
+                return null;
+            }
+            double[] centroidX = new double[width];
+            double[] centroidY = new double[height];
+            long position = HEADER;
+            position = read(channel, position, centroidX);
+            position = read(channel, position, centroidY);
+            CellGrid grid = new CellGrid(centroidX, centroidY, stepX, stepY, degreeOfPerturbation);
+            position = read(channel, position, grid.nearestDistances);
+            position = read(channel, position, grid.land);
+            read(channel, position, grid.urban);
+            for (int index = 0; index < grid.getSize(); index++) {
+                if (grid.isUrban(index)) {
+                    grid.newUrbanAt[index] = -1;
+                }
+            }
+            return grid;
+        }
+    }
+
+    public void store(String key, CellGrid grid) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(key + ".bin");
+        Path temporary = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).putInt(grid.getWidth()).putInt(grid.getHeight());
+                header.putDouble(grid.getStepX()).putDouble(grid.getStepY());
+                header.flip();
+                long position = writeFully(channel, 0, header);
+                position = write(channel, position, grid.centroidX);
+                position = write(channel, position, grid.centroidY);
+                position = write(channel, position, grid.nearestDistances);
+                position = write(channel, position, grid.land);
+                write(channel, position, grid.urban);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static long read(FileChannel channel, long position, double[] values) throws IOException {
+        int perChunk = (int) (CHUNK / 8);
+        for (int from = 0; from < values.length; from += perChunk) {
+            int count = Math.min(perChunk, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * count).asDoubleBuffer().get(values, from, count);
+            position += 8L * count;
+        }
+        return position;
+    }
+
+    private static long read(FileChannel channel, long position, long[] values) throws IOException {
+        int perChunk = (int) (CHUNK / 8);
+        for (int from = 0; from < values.length; from += perChunk) {
+            int count = Math.min(perChunk, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * count).asLongBuffer().get(values, from, count);
+            position += 8L * count;
+        }
+        return position;
+    }
+
+    // Writing goes through a plain buffer: a mapping would keep the temporary file locked on Windows until it is collected
+    private static long write(FileChannel channel, long position, double[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        int perChunk = buffer.capacity() / 8;
+        for (int from = 0; from < values.length; from += perChunk) {
+            int count = Math.min(perChunk, values.length - from);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(values, from, count);
+            buffer.limit(8 * count);
+            position = writeFully(channel, position, buffer);
+        }
+        return position;
+    }
+
+    private static long write(FileChannel channel, long position, long[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        int perChunk = buffer.capacity() / 8;
+        for (int from = 0; from < values.length; from += perChunk) {
+            int count = Math.min(perChunk, values.length - from);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, from, count);
+            buffer.limit(8 * count);
+            position = writeFully(channel, position, buffer);
+        }
+        return position;
+    }
+
+    private static long writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+}
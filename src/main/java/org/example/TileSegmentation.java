@@ -0,0 +1,111 @@
+package org.example;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+Watershed segmentation of one tile of the grid, the same steps as Simulation.segmentation.
+The image covers the tile and a halo around it, so the blur and the basins see the neighbouring tiles,
+but markers are only placed inside the tile and only the cells of the tile get a segment.
+Segments of the tile are numbered from firstSegment + 1 on, every tile has its own range.
+One instance per worker thread, the buffers are reused from tile to tile.
+*/
+class TileSegmentation {
+    private Mat gray;
+    private Mat image;
+    private Mat markers;
+    private byte[] pixels;
+    private int[] labels;
+    private int[] local;
+    private int capacity = -1;
+
+    // Tile [i0, i1] x [j0, j1] with the halo around it
+    Segments segment(CellGrid grid, int i0, int j0, int i1, int j1, int halo, Random rand, int numOFMarkers, int firstSegment) {
+        int a0 = Math.max(0, i0 - halo);
+        int a1 = Math.min(grid.getWidth() - 1, i1 + halo);
+        int b0 = Math.max(0, j0 - halo);
+        int b1 = Math.min(grid.getHeight() - 1, j1 + halo);
+        int w = a1 - a0 + 1;
+        int h = b1 - b0 + 1;
+        int tileW = i1 - i0 + 1;
+        int tileH = j1 - j0 + 1;
+        if (gray == null || gray.rows() != w || gray.cols() != h) {
+            gray = new Mat(w, h, CvType.CV_8UC1);
+            image = new Mat(w, h, CvType.CV_8UC3);
+            markers = new Mat(w, h, CvType.CV_32S);
+        }
+        if (capacity < w * h) {
+            capacity = w * h;
+            pixels = new byte[capacity];
+            labels = new int[capacity];
+            local = new int[capacity];
+        }
+        for (int i = a0; i <= a1; i++) {
+            int offset = (i - a0) * h - b0;
+            for (int j = b0; j <= b1; j++) {
+                pixels[offset + j] = Simulation.segmentationPixel(grid, grid.index(i, j));
+            }
+        }
+        gray.put(0, 0, pixels); // only the first w * h values fit into the Mat
+        Imgproc.GaussianBlur(gray, gray, new Size(3, 3), 0);
+        Imgproc.cvtColor(gray, image, Imgproc.COLOR_GRAY2BGR);
+
+        Arrays.fill(labels, 0, w * h, 0);
+        for (int m = 0; m < numOFMarkers; m++) {
+            int x = j0 - b0 + rand.nextInt(tileH);
+            int y = i0 - a0 + rand.nextInt(tileW);
+            labels[y * h + x] = m + 1;
+        }
+        markers.put(0, 0, labels);
+        Imgproc.watershed(image, markers);
+        markers.get(0, 0, labels);
+
+        // local segment numbers of the tile's own cells, in the order of their grid indices
+        int cnt = 1;
+        int[] dict = new int[numOFMarkers + 2];
+        for (int i = i0; i <= i1; i++) {
+            for (int j = j0; j <= j1; j++) {
+                int pixel = (i - a0) * h + (j - b0);
+                int region = labels[pixel];
+                if (region == -1) {
+                    int y = i - a0;
+                    int x = j - b0;
+                    if (y != 0 && x != 0 && y != w - 1 && x != h - 1) {
+                        if (labels[pixel + h] > 0) {
+                            region = labels[pixel + h];
+                        } else if (labels[pixel - h] > 0) {
+                            region = labels[pixel - h];
+                        } else if (labels[pixel + 1] > 0) {
+                            region = labels[pixel + 1];
+                        } else {
+                            region = labels[pixel - 1];
+                        }
+                    }
+                }
+                int cell = (i - i0) * tileH + (j - j0);
+                if (region <= 0 || region > numOFMarkers) {
+                    local[cell] = 0;
+                    grid.curSegment[grid.index(i, j)] = 0;
+                    continue;
+                }
+                if (dict[region] == 0) {
+                    dict[region] = cnt++;
+                }
+                local[cell] = dict[region];
+                grid.curSegment[grid.index(i, j)] = firstSegment + dict[region];
+            }
+        }
+
+        Segments tile = Segments.fromLabels(Arrays.copyOf(local, tileW * tileH), cnt - 1);
+        int[] cells = tile.cells;
+        for (int c = 0; c < cells.length; c++) {
+            cells[c] = grid.index(i0 + cells[c] / tileH, j0 + cells[c] % tileH);
+        }
+        return new Segments(tile.count, tile.start, cells, firstSegment);
+    }
+}
@@ -28,16 +28,16 @@ public class UrbanizationEvaluator {
     double mediumBuildingsArea;
     STRTree strTree;
 
-    public void initUrban(Cell cell) {
+    // Scores the surroundings of a cell centroid, true means the cell starts as urban
+    public boolean initUrban(Point center) {
         int score = 0;
-
-        Point center = cell.point;
+        int queries = 4; // points, buildings, commercial landuse and footways are always queried
 
         //points | <2 => 0; 2-4 => 1; >4 => 2
         int scoresForPoints = 0;
-        Object[] nearestPoints = strTree.getPoints().nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointPointDistance(), thresholdNumberOfPoints);
+        Geometry[] nearestPoints = strTree.getPoints().nearest(center, thresholdNumberOfPoints);
         for (int i = 0; i < thresholdNumberOfPoints; i++) {
-            if (nearestPoints[i] != null && strTree.dist(center, (Point) nearestPoints[i]) <= cellSize) {
+            if (nearestPoints[i] != null && strTree.isWithinDistance(center, (Point) nearestPoints[i], cellSize)) {
                 if (i == thresholdNumberOfPoints - 1) {
                     scoresForPoints += scoreForPoints;
                 }
@@ -49,11 +49,11 @@ public class UrbanizationEvaluator {
 
         //buildings  | 0 => 0; 1 => 1; >1 => 2
         int scoreForBuildings = 0;
-        Object[] nearestBuildings = strTree.getBuildings().nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointMultiPolygonDistance(), 7);
+        Geometry[] nearestBuildings = strTree.getBuildings().nearest(center, 7);
         double S = 0;
         for (int i = 0; i < 7; i++) {
             //double q = dist(center, (MultiPolygon) nearestBuildings[i]);
-            if (nearestBuildings[i] == null || strTree.dist(center, (MultiPolygon) nearestBuildings[i]) > SCANNING_RADIUS) {
+            if (nearestBuildings[i] == null || !strTree.isWithinDistance(center, (MultiPolygon) nearestBuildings[i], SCANNING_RADIUS)) {
                 break;
             }
             if (i == 6) {
@@ -72,20 +72,22 @@ public class UrbanizationEvaluator {
 
         //landuse | commercial => 4; residential => 3; industrial => 3; other urban => 2; else => 0
         int scoreForLanduse = 0;
-        MultiPolygon nearestCommercial = (MultiPolygon) strTree.getLanduse()[0].nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointMultiPolygonDistance());
-        if (nearestCommercial != null && nearestCommercial.contains(center)) {
+        MultiPolygon nearestCommercial = (MultiPolygon) strTree.getLanduse()[0].nearest(center);
+        if (nearestCommercial != null && strTree.getFacets().contains(nearestCommercial, center)) {
             scoreForLanduse = maxScoreForLanduse;
         } else {
-            MultiPolygon nearestResOrInd = (MultiPolygon) strTree.getLanduse()[1].nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointMultiPolygonDistance());
-            if ((nearestResOrInd != null && nearestResOrInd.contains(center)) ||
-                    (nearestCommercial != null && strTree.dist(center, nearestCommercial) <= SCANNING_RADIUS)) {
+            queries++;
+            MultiPolygon nearestResOrInd = (MultiPolygon) strTree.getLanduse()[1].nearest(center);
+            if ((nearestResOrInd != null && strTree.getFacets().contains(nearestResOrInd, center)) ||
+                    (nearestCommercial != null && strTree.isWithinDistance(center, nearestCommercial, SCANNING_RADIUS))) {
                 scoreForLanduse = maxScoreForLanduse - 1;
             } else {
-                MultiPolygon nearestOtherUrban = (MultiPolygon) strTree.getLanduse()[2].nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointMultiPolygonDistance());
-                if (nearestOtherUrban != null && nearestOtherUrban.contains(center)) {
+                queries++;
+                MultiPolygon nearestOtherUrban = (MultiPolygon) strTree.getLanduse()[2].nearest(center);
+                if (nearestOtherUrban != null && strTree.getFacets().contains(nearestOtherUrban, center)) {
                     scoreForLanduse = Math.max(maxScoreForLanduse - 2, 0);
-                } else if ((nearestOtherUrban != null && strTree.dist(center, nearestOtherUrban) <= SCANNING_RADIUS) ||
-                        (nearestResOrInd != null && strTree.dist(center, nearestResOrInd) <= SCANNING_RADIUS)) {
+                } else if ((nearestOtherUrban != null && strTree.isWithinDistance(center, nearestOtherUrban, SCANNING_RADIUS)) ||
+                        (nearestResOrInd != null && strTree.isWithinDistance(center, nearestResOrInd, SCANNING_RADIUS))) {
                     scoreForLanduse = Math.max(maxScoreForLanduse - 3, 0);
                 }
             }
@@ -93,18 +95,16 @@ public class UrbanizationEvaluator {
         score += scoreForLanduse;
         //footway | exist => 2; else => 0
         int scoresForFootways = 0;
-        Object nearestFootway = strTree.getFootways().nearestNeighbour(center.getEnvelopeInternal(), center, new STRTree.PointLineDistance());
-        if (nearestFootway != null && strTree.dist(center, (MultiLineString) nearestFootway) <= SCANNING_RADIUS) {
+        Geometry nearestFootway = strTree.getFootways().nearest(center);
+        if (nearestFootway != null && strTree.isWithinDistance(center, (MultiLineString) nearestFootway, SCANNING_RADIUS)) {
             scoresForFootways += scoreForFootway;
         }
         score += scoresForFootways;
-
-        if (score >= thresholdScore) {//7 - best
-            cell.isUrban = true;
-            cell.newUrbanAt = -1;
-        } else {
-            cell.isUrban = false;
+        if (strTree.metrics != null) {
+            strTree.metrics.addQueries(queries);
         }
+
+        return score >= thresholdScore;//7 - best
     }
 
 }
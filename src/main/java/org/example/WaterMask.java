@@ -0,0 +1,162 @@
+package org.example;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Water mask of the grid by scanline rasterization. Every polygon of the water layers is cut by the vertical lines
+through the column centroids; the crossings of a column are sorted by y and the rows between every second pair
+of them are filled (even-odd, so holes stay land). A cell is water if its centroid lies inside a polygon,
+as STRTree.isInWater tells for a single point, up to points exactly on the boundary.
+Columns are contiguous in the grid, so a filled span is a run of bits set word by word.
+The cost is one pass over the edges and the filled cells, there are no spatial queries.
+*/
+public class WaterMask {
+    private final CellGrid grid;
+    private final long[] water;
+    private int[] start; // per column of the current polygon: offset of its crossings
+    private double[] crossings = new double[64];
+
+    private WaterMask(CellGrid grid) {
+        this.grid = grid;
+        water = new long[CellGrid.words(grid.getSize())];
+        start = new int[grid.getWidth() + 2];
+    }
+
+    // Packed water bits of the grid, layers are e.g. the water polygons and the buffered rivers of STRTree
+    @SafeVarargs
+    public static long[] rasterize(CellGrid grid, List<Geometry>... layers) {
+        WaterMask mask = new WaterMask(grid);
+        for (List<Geometry> layer : layers) {
+            for (Geometry geometry : layer) {
+                for (Object polygon : PolygonExtracter.getPolygons(geometry)) {
+                    mask.fill((Polygon) polygon);
+                }
+            }
+        }
+        return mask.water;
+    }
+
+    private void fill(Polygon polygon) {
+        if (polygon.isEmpty()) {
+            return;
+        }
+        int width = grid.getWidth();
+        int i0 = Math.max(0, firstColumn(polygon.getEnvelopeInternal().getMinX()));
+        int i1 = Math.min(width - 1, lastColumn(polygon.getEnvelopeInternal().getMaxX()));
+        if (i0 > i1) {
+            return;
+        }
+        //count the crossings of every column, then place them
+        int columns = i1 - i0 + 1;
+        Arrays.fill(start, 0, columns + 2, 0);
+        forEachCrossing(polygon, i0, i1, (i, y) -> start[i - i0 + 2]++);
+        for (int c = 2; c <= columns + 1; c++) {
+            start[c] += start[c - 1];
+        }
+        if (crossings.length < start[columns + 1]) {
+            crossings = new double[Math.max(start[columns + 1], 2 * crossings.length)];
+        }
+        forEachCrossing(polygon, i0, i1, (i, y) -> crossings[start[i - i0 + 1]++] = y);
+
+        //start[c] is the end of column c - 1 now
+        int from = 0;
+        for (int c = 0; c < columns; c++) {
+            int to = start[c + 1];
+            Arrays.sort(crossings, from, to);
+            for (int k = from; k + 1 < to; k += 2) {
+                fillColumn(i0 + c, crossings[k], crossings[k + 1]);
+            }
+            from = to;
+        }
+    }
+
+    private interface CrossingConsumer {
+        void accept(int column, double y);
+    }
+
+    // Every crossing of a ring edge with the centroid line of a column in [i0, i1], edges are half-open in x
+    private void forEachCrossing(Polygon polygon, int i0, int i1, CrossingConsumer consumer) {
+        forEachCrossing(polygon.getExteriorRing(), i0, i1, consumer);
+        for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+            forEachCrossing(polygon.getInteriorRingN(r), i0, i1, consumer);
+        }
+    }
+
+    private void forEachCrossing(LineString ring, int i0, int i1, CrossingConsumer consumer) {
+        Coordinate[] coordinates = ring.getCoordinates();
+        for (int k = 0; k + 1 < coordinates.length; k++) {
+            Coordinate a = coordinates[k];
+            Coordinate b = coordinates[k + 1];
+            if (a.x == b.x) {
+                continue;
+            }
+            int from = Math.max(i0, firstColumn(Math.min(a.x, b.x)));
+            int to = Math.min(i1, lastColumn(Math.max(a.x, b.x)));
+            for (int i = from; i <= to; i++) {
+                double x = grid.centroidX[i];
+                if ((a.x <= x) != (b.x <= x)) {
+                    consumer.accept(i, a.y + (x - a.x) * (b.y - a.y) / (b.x - a.x));
+                }
+            }
+        }
+    }
+
+    // Rows of the column whose centroid lies in [low, high)
+    private void fillColumn(int i, double low, double high) {
+        int height = grid.getHeight();
+        double[] centroidY = grid.centroidY;
+        int j0 = clamp(grid.rowOf(high) - 1, height);
+        while (j0 < height && centroidY[j0] >= high) {
+            j0++;
+        }
+        int j1 = clamp(grid.rowOf(low) + 1, height);
+        while (j1 >= 0 && centroidY[j1] < low) {
+            j1--;
+        }
+        if (j0 <= j1) {
+            setRange(grid.index(i, j0), grid.index(i, j1));
+        }
+    }
+
+    // Bits [from, to] of the mask
+    private void setRange(int from, int to) {
+        int first = from >>> 6;
+        int last = to >>> 6;
+        long head = -1L << from;
+        long tail = -1L >>> (63 - (to & 63));
+        if (first == last) {
+            water[first] |= head & tail;
+            return;
+        }
+        water[first] |= head;
+        for (int word = first + 1; word < last; word++) {
+            water[word] = -1L;
+        }
+        water[last] |= tail;
+    }
+
+    // Columns around the ones whose centroid may lie at x or beyond, exact tests are done on the centroids
+    private int firstColumn(double x) {
+        return clampColumn((long) Math.floor((x - grid.centroidX[0]) / grid.getStepX()) - 1);
+    }
+
+    private int lastColumn(double x) {
+        return clampColumn((long) Math.ceil((x - grid.centroidX[0]) / grid.getStepX()) + 1);
+    }
+
+    // Far outside the grid the column may not fit an int, -1 and width mean "before" and "after" the grid
+    private int clampColumn(long i) {
+        return (int) Math.max(-1, Math.min(grid.getWidth(), i));
+    }
+
+    private static int clamp(int j, int height) {
+        return Math.max(0, Math.min(height - 1, j));
+    }
+}
@@ -0,0 +1,193 @@
+package org.example;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+The growth kernels of Simulation.develop allocate per call (the order of the segments, one Random), never per
+growth step. A spontaneous segment takes cells / segments steps, so developing the same segments with twice the
+cells doubles the steps and must allocate the same bytes. An organic segment visits each of its cells, so the same
+number of segments on a grid twice as high must allocate the same bytes too.
+*/
+public class GrowthAllocationTest {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 100;
+    private static final int SEGMENTS = 4; // vertical bands of WIDTH / SEGMENTS columns
+    private static final int STEPS = 5000; // per segment in the shorter run
+
+    @Test
+    public void allocationDoesNotGrowWithGrowthSteps() {
+        com.sun.management.ThreadMXBean threads = threads();
+        CellGrid grid = spontaneousGrid();
+        Segments segments = bands(grid);
+        Simulation simulation = new Simulation(1L);
+        simulation.countUrban(grid);
+
+        //warm up both runs, so that they are measured in the same compiled code
+        for (int k = 0; k < 20; k++) {
+            simulation.develop(grid, segments, SEGMENTS * STEPS, false);
+            simulation.develop(grid, segments, SEGMENTS * 2 * STEPS, false);
+        }
+        long once = Long.MAX_VALUE;
+        long twice = Long.MAX_VALUE;
+        for (int k = 0; k < 5; k++) {
+            once = Math.min(once, allocated(threads, simulation, grid, segments, SEGMENTS * STEPS));
+            twice = Math.min(twice, allocated(threads, simulation, grid, segments, SEGMENTS * 2 * STEPS));
+        }
+        assertEquals("bytes allocated by develop with " + STEPS + " and " + 2 * STEPS + " steps per segment",
+                once, twice);
+    }
+
+    @Test
+    public void organicAllocationDoesNotGrowWithSegmentCells() {
+        com.sun.management.ThreadMXBean threads = threads();
+        CellGrid small = organicGrid(HEIGHT);
+        CellGrid large = organicGrid(2 * HEIGHT);
+        Segments smallSegments = bands(small);
+        Segments largeSegments = bands(large);
+        Simulation smallSimulation = new Simulation(1L);
+        Simulation largeSimulation = new Simulation(1L);
+        smallSimulation.countUrban(small);
+        largeSimulation.countUrban(large);
+
+        for (int k = 0; k < 20; k++) {
+            resetOrganic(small);
+            smallSimulation.develop(small, smallSegments, small.getSize(), false);
+            resetOrganic(large);
+            largeSimulation.develop(large, largeSegments, large.getSize(), false);
+        }
+        //suitability is 0, so a spontaneous segment would stop at once: every free cell urban means organic growth
+        for (int index = 0; index < large.getSize(); index++) {
+            assertTrue("cell " + index + " grown organically", large.isUrban(index));
+        }
+        long once = Long.MAX_VALUE;
+        long twice = Long.MAX_VALUE;
+        for (int k = 0; k < 5; k++) {
+            resetOrganic(small);
+            once = Math.min(once, allocated(threads, smallSimulation, small, smallSegments, small.getSize()));
+            resetOrganic(large);
+            twice = Math.min(twice, allocated(threads, largeSimulation, large, largeSegments, large.getSize()));
+        }
+        assertEquals("bytes allocated by develop with " + HEIGHT + " and " + 2 * HEIGHT + " rows of organic segments",
+                once, twice);
+    }
+
+    /*
+    Organic growth at the borders of the grid: a cell grows only next to a cell of its own segment, and the cells
+    across a border are not neighbours, neither the next column (index(i + 1, j) of the last column is past the
+    grid) nor the top of the next column (index(i, j + 1) of the last row). The segment lies on the borders away from
+    the corners, where the clipped neighbourhoods are still dense enough for organic growth
+    */
+    @Test
+    public void organicGrowthStaysInsideTheGrid() {
+        int width = 10;
+        int height = 9;
+        CellGrid grid = grid(width, height);
+        int[] labels = new int[grid.getSize()];
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.setUrban(index, true);
+            grid.developmentProbability[index] = 1;
+        }
+        int lastRow = grid.index(4, height - 1);
+        int nextColumnTop = grid.index(5, 0);
+        int lastColumn = grid.index(width - 1, 4);
+        int firstColumn = grid.index(0, 4);
+        int belowFirstColumn = grid.index(0, 5);
+        for (int index : new int[]{lastRow, nextColumnTop, lastColumn, firstColumn, belowFirstColumn}) {
+            grid.setUrban(index, false);
+            labels[index] = 1;
+            grid.curSegment[index] = 1;
+        }
+        Simulation simulation = new Simulation(1L);
+        simulation.countUrban(grid);
+        simulation.develop(grid, Segments.fromLabels(labels, 1), grid.getSize(), false);
+
+        assertFalse("last row grown from the top of the next column", grid.isUrban(lastRow));
+        assertFalse("top of the next column grown from the last row", grid.isUrban(nextColumnTop));
+        assertFalse("last column grown from outside the grid", grid.isUrban(lastColumn));
+        assertTrue("first column grown from the cell below", grid.isUrban(firstColumn));
+        assertTrue("cell below grown from the first column", grid.isUrban(belowFirstColumn));
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean threads, Simulation simulation, CellGrid grid,
+                                  Segments segments, int cells) {
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        simulation.develop(grid, segments, cells, false);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    // Land of the given size, every cell at its own centroid
+    private static CellGrid grid(int width, int height) {
+        double[] xs = new double[width];
+        double[] ys = new double[height];
+        for (int i = 0; i < width; i++) {
+            xs[i] = i;
+        }
+        for (int j = 0; j < height; j++) {
+            ys[j] = -j;
+        }
+        CellGrid grid = new CellGrid(xs, ys, 1, -1, 1, false);
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.setLand(index, true);
+        }
+        return grid;
+    }
+
+    /*
+    Land without urban cells, so every segment grows spontaneously; a development probability of 0 keeps the grid
+    unchanged from run to run, the walks go on for all their steps since a free cell is its own neighbour
+    */
+    private static CellGrid spontaneousGrid() {
+        CellGrid grid = grid(WIDTH, HEIGHT);
+        Random random = new Random(7);
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.suitability[index] = 0.05 + 0.9 * random.nextDouble();
+            grid.developmentProbability[index] = 0;
+        }
+        return grid;
+    }
+
+    // Two cells of three urban, so every segment is dense enough to grow organically, and always does
+    private static CellGrid organicGrid(int height) {
+        CellGrid grid = grid(WIDTH, height);
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.suitability[index] = 0;
+            grid.developmentProbability[index] = 1;
+        }
+        resetOrganic(grid);
+        return grid;
+    }
+
+    // The neighbourhood counts stay those of this mask, develop reads them from the last countUrban
+    private static void resetOrganic(CellGrid grid) {
+        for (int index = 0; index < grid.getSize(); index++) {
+            grid.setUrban(index, (grid.column(index) + grid.row(index)) % 3 != 0);
+        }
+    }
+
+    private static Segments bands(CellGrid grid) {
+        int[] labels = new int[grid.getSize()];
+        for (int index = 0; index < labels.length; index++) {
+            labels[index] = grid.column(index) * SEGMENTS / grid.getWidth() + 1;
+            grid.curSegment[index] = labels[index];
+        }
+        return Segments.fromLabels(labels, SEGMENTS);
+    }
+}